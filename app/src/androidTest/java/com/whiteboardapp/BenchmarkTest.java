@@ -0,0 +1,607 @@
+package com.whiteboardapp;
+
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.whiteboardapp.common.AppUtils;
+import com.whiteboardapp.common.BinaryImage;
+import com.whiteboardapp.common.BinaryMorphology;
+import com.whiteboardapp.common.MatPool;
+import com.whiteboardapp.common.PixelBuffer;
+import com.whiteboardapp.controller.MatConverter;
+import com.whiteboardapp.core.pipeline.Binarization;
+import com.whiteboardapp.core.pipeline.ChangeDetector;
+import com.whiteboardapp.core.pipeline.CornerDetector;
+import com.whiteboardapp.core.pipeline.EightBitFrameContext;
+import com.whiteboardapp.core.pipeline.EightBitStage;
+import com.whiteboardapp.core.pipeline.FrameContext;
+import com.whiteboardapp.core.pipeline.FrameStage;
+import com.whiteboardapp.core.pipeline.MaskPropagator;
+import com.whiteboardapp.core.pipeline.ModelCommitter;
+import com.whiteboardapp.core.pipeline.ModelUpdater;
+import com.whiteboardapp.core.pipeline.PerspectiveTransformer;
+import com.whiteboardapp.core.pipeline.SegmentRemover;
+import com.whiteboardapp.core.pipeline.SegmentationLane;
+import com.whiteboardapp.core.pipeline.Segmentator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Instrumented benchmarks comparing optimized pipeline paths against the ones they replace.
+ * Timings are written to logcat with the tag below. Only the results of the paths are asserted, not which one is
+ * faster, as a few rounds on a device depend too much on the JIT, thermal throttling and GC.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BenchmarkTest {
+
+    private static final String TAG = "BenchmarkTest";
+    private static final int ROUNDS = 20;
+
+    // Analysis resolution used by CaptureActivity.
+    private static final int FRAME_WIDTH = 1280;
+    private static final int FRAME_HEIGHT = 960;
+
+    // Initialize openCV library
+    static {
+        if (OpenCVLoader.initDebug()) {
+            Log.d("BenchmarkTest: ", "Opencv is loaded!");
+        } else {
+            Log.d("BenchmarkTest: ", "Open failed to load.");
+        }
+    }
+
+    @Test
+    public void nv21ToBgr_isCloserThanJpegRoundTrip() {
+        // Arrange
+        Mat imgBgr = loadFrameBgr("test_image.png");
+        byte[] nv21 = bgrToNv21(imgBgr);
+
+        // Act
+        long jpegTime = time(i -> nv21ToBgrThroughJpeg(nv21));
+        long directTime = time(i -> MatConverter.nv21ToBgr(nv21, FRAME_WIDTH, FRAME_HEIGHT));
+        logComparison("YUV ingest (JPEG round-trip)", jpegTime, "YUV ingest (direct NV21)", directTime);
+
+        // Assert
+        // The direct path must be at least as close to the source frame as the lossy JPEG path.
+        Mat imgJpegPath = nv21ToBgrThroughJpeg(nv21);
+        Mat imgDirectPath = MatConverter.nv21ToBgr(nv21, FRAME_WIDTH, FRAME_HEIGHT);
+        double psnrJpeg = Core.PSNR(imgBgr, imgJpegPath);
+        double psnrDirect = Core.PSNR(imgBgr, imgDirectPath);
+        Log.i(TAG, "PSNR JPEG path: " + psnrJpeg + " dB, direct path: " + psnrDirect + " dB");
+
+        Assert.assertTrue(psnrDirect >= psnrJpeg);
+    }
+
+    @Test
+    public void lockedPerspective_matchesWarp() {
+        // Arrange
+        Mat imgBgr = loadFrameBgr("test_image.png");
+        // Corners in coordinates of the frame rotated by 90 degrees (960x1280).
+        MatOfPoint2f corners = new MatOfPoint2f(new Point(60, 180), new Point(900, 150), new Point(870, 1210), new Point(90, 1150));
+        PerspectiveTransformer warpTransformer = new PerspectiveTransformer();
+        PerspectiveTransformer lockedTransformer = new PerspectiveTransformer();
+        lockedTransformer.lock();
+
+        // First locked frame builds the remap tables and is not part of the steady state.
+        long tableTime = System.nanoTime();
+        lockedTransformer.getPerspective(imgBgr, corners, 90);
+        tableTime = System.nanoTime() - tableTime;
+
+        // Act
+        long warpTime = time(i -> warpTransformer.getPerspective(imgBgr, corners, 90));
+        long lockedTime = time(i -> MatPool.getInstance().recycle(lockedTransformer.getPerspective(imgBgr, corners, 90)));
+        Log.i(TAG, "Building remap tables took " + (tableTime / 1e6) + " ms");
+        logComparison("Perspective (warpPerspective)", warpTime, "Perspective (locked remap)", lockedTime);
+
+        // Assert
+        // Fixed-point tables only differ from the float warp by sub-pixel rounding.
+        Mat imgWarped = warpTransformer.getPerspective(imgBgr, corners, 90);
+        Mat imgRemapped = lockedTransformer.getPerspective(imgBgr, corners, 90);
+        Assert.assertEquals(imgWarped.size(), imgRemapped.size());
+        Assert.assertTrue(Core.PSNR(imgWarped, imgRemapped) > 30);
+    }
+
+    @Test
+    public void frameStages_areTimedIndependentlyAndReuseBuffers() {
+        // Arrange
+        Mat imgBgr = loadFrameBgr("test_image.png");
+        Mat imgGray = new Mat();
+        Imgproc.cvtColor(imgBgr, imgGray, Imgproc.COLOR_BGR2GRAY);
+        Mat imgSegmentationRgb = new Mat();
+        Imgproc.resize(imgBgr, imgSegmentationRgb, Segmentator.MODEL_INPUT_SIZE, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.cvtColor(imgSegmentationRgb, imgSegmentationRgb, Imgproc.COLOR_BGR2RGB);
+
+        BinaryImage model = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        model.fill(true);
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        List<FrameStage> stages = Arrays.asList(new Segmentator(appContext), new Binarization(), new ModelCommitter(model));
+        FrameContext context = new FrameContext(FRAME_WIDTH, FRAME_HEIGHT);
+
+        // Act
+        long[] stageTimes = new long[stages.size()];
+        for (int i = 0; i < ROUNDS; i++) {
+            context.setInput(i, imgGray, imgSegmentationRgb);
+            for (int j = 0; j < stages.size(); j++) {
+                long startTime = System.nanoTime();
+                stages.get(j).process(context);
+                stageTimes[j] += System.nanoTime() - startTime;
+            }
+        }
+
+        for (int j = 0; j < stages.size(); j++) {
+            logTiming("Stage " + stages.get(j).getName(), stageTimes[j]);
+        }
+
+        // Assert
+        // The same frame over and over ends up in the model everywhere it is not covered by the segmentation mask.
+        long[] modelWords = model.getWords();
+        long[] binarizedWords = context.getBinarizedBits().getWords();
+        long[] segMaskWords = context.getSegMask().getWords();
+        for (int i = 0; i < modelWords.length; i++) {
+            Assert.assertEquals(0, (modelWords[i] ^ binarizedWords[i]) & ~segMaskWords[i]);
+        }
+    }
+
+    @Test
+    public void pixelBuffers_matchGetBufferRoundTrips() {
+        // Arrange
+        // Segment removal on a board with a person covering a third of it.
+        Mat imgGray = new Mat();
+        Imgproc.cvtColor(loadFrameBgr("test_image.png"), imgGray, Imgproc.COLOR_BGR2GRAY);
+        EightBitFrameContext context = new EightBitFrameContext(FRAME_WIDTH, FRAME_HEIGHT);
+        context.setInput(0, imgGray, new Mat());
+        new Binarization().process(context);
+        context.getBinarizedBits().unpack(context.getBinarizedPixels());
+        context.getSegMap().setTo(new Scalar(0));
+        context.getSegMap().colRange(0, FRAME_WIDTH / 3).setTo(new Scalar(255));
+
+        PixelBuffer model = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+        model.getMat().setTo(new Scalar(255));
+        SegmentRemover segmentRemover = new SegmentRemover(model);
+
+        // Act
+        // Previous implementation: copy every Mat out with get, loop, and copy back with put.
+        Mat imgBinarized = context.getBinarized().clone();
+        Mat imgMaskedModel = new Mat();
+        long getBufferTime = time(i -> {
+            model.getMat().copyTo(imgMaskedModel);
+            byte[] bufferBinarized = AppUtils.getBuffer(imgBinarized);
+            byte[] bufferSegMap = AppUtils.getBuffer(context.getSegMap());
+            byte[] bufferModel = AppUtils.getBuffer(imgMaskedModel);
+            for (int j = 0; j < bufferBinarized.length; j++) {
+                if (bufferSegMap[j] == -1) {
+                    bufferBinarized[j] = -1;
+                    bufferModel[j] = -1;
+                }
+            }
+            imgBinarized.put(0, 0, bufferBinarized);
+            imgMaskedModel.put(0, 0, bufferModel);
+        });
+        long pixelBufferTime = time(i -> segmentRemover.process(context));
+        logComparison("Segment removal (getBuffer round-trips)", getBufferTime, "Segment removal (pixel buffers)", pixelBufferTime);
+
+        // Assert
+        Assert.assertEquals(0, Core.countNonZero(diff(imgBinarized, context.getBinarized())));
+        Assert.assertEquals(0, Core.countNonZero(diff(imgMaskedModel, context.getMaskedModel())));
+    }
+
+    @Test
+    public void modelCommitter_matchesSeparateStages() {
+        // Arrange
+        // The board, then the board with a new stroke and a person covering a third of it, twice so the stroke persists.
+        Mat imgGray = new Mat();
+        Imgproc.cvtColor(loadFrameBgr("test_image.png"), imgGray, Imgproc.COLOR_BGR2GRAY);
+        Mat imgGrayStroke = imgGray.clone();
+        Imgproc.line(imgGrayStroke, new Point(FRAME_WIDTH / 2.0, 100), new Point(FRAME_WIDTH - 100, FRAME_HEIGHT - 100), new Scalar(0), 8);
+        Mat segMapEmpty = Mat.zeros(FRAME_HEIGHT, FRAME_WIDTH, CvType.CV_8UC1);
+        Mat segMapPerson = segMapEmpty.clone();
+        segMapPerson.colRange(0, FRAME_WIDTH / 3).setTo(new Scalar(255));
+        List<Mat> frames = Arrays.asList(imgGray, imgGray, imgGrayStroke, imgGrayStroke);
+        List<Mat> segMaps = Arrays.asList(segMapEmpty, segMapEmpty, segMapPerson, segMapPerson);
+
+        PixelBuffer separateModel = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+        separateModel.getMat().setTo(new Scalar(255));
+        List<EightBitStage> separateStages = Arrays.asList(new SegmentRemover(separateModel), new ChangeDetector(), new ModelUpdater(separateModel));
+        BinaryImage fusedModel = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        fusedModel.fill(true);
+        FrameStage modelCommitter = new ModelCommitter(fusedModel);
+        PixelBuffer fusedPixels = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+
+        EightBitFrameContext separateContext = new EightBitFrameContext(FRAME_WIDTH, FRAME_HEIGHT);
+        EightBitFrameContext fusedContext = new EightBitFrameContext(FRAME_WIDTH, FRAME_HEIGHT);
+        Binarization binarization = new Binarization();
+
+        // Act
+        long separateTime = 0;
+        long fusedTime = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            int frame = i % frames.size();
+            for (EightBitFrameContext context : Arrays.asList(separateContext, fusedContext)) {
+                context.setInput(i, frames.get(frame), new Mat());
+                binarization.process(context);
+                context.getBinarizedBits().unpack(context.getBinarizedPixels());
+                segMaps.get(frame).copyTo(context.getSegMap());
+                context.getSegMask().pack(context.getSegMapPixels());
+            }
+
+            long startTime = System.nanoTime();
+            for (EightBitStage stage : separateStages) {
+                stage.process(separateContext);
+            }
+            separateTime += System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            modelCommitter.process(fusedContext);
+            fusedTime += System.nanoTime() - startTime;
+
+            // Assert
+            fusedContext.getPersistentChangeBits().unpack(fusedPixels.getPixels());
+            Assert.assertEquals(0, Core.countNonZero(diff(separateContext.getPersistentChanges(), fusedPixels.getMat())));
+            fusedModel.unpack(fusedPixels.getPixels());
+            Assert.assertEquals(0, Core.countNonZero(diff(separateModel.getMat(), fusedPixels.getMat())));
+        }
+
+        logComparison("Commit (separate stages)", separateTime, "Commit (fused bit-packed kernel)", fusedTime);
+
+        Assert.assertTrue(Core.countNonZero(separateContext.getPersistentChanges()) > 0);
+    }
+
+    @Test
+    public void binaryMajority_matchesMedianBlur() {
+        // Arrange
+        Mat imgGray = new Mat();
+        Imgproc.cvtColor(loadFrameBgr("test_image.png"), imgGray, Imgproc.COLOR_BGR2GRAY);
+        PixelBuffer imgThreshold = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+        Imgproc.adaptiveThreshold(imgGray, imgThreshold.getMat(), 255, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, Imgproc.THRESH_BINARY_INV, 21, 4);
+        BinaryImage thresholdBits = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        BinaryImage filteredBits = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        BinaryMorphology morphology = new BinaryMorphology();
+
+        // Act
+        Mat imgMedian = new Mat();
+        long medianTime = time(i -> Imgproc.medianBlur(imgThreshold.getMat(), imgMedian, 3));
+        // Includes packing the thresholded image, which the pipeline has to do as well.
+        long majorityTime = time(i -> {
+            thresholdBits.pack(imgThreshold.getPixels());
+            morphology.majority3x3(thresholdBits, filteredBits);
+        });
+        logComparison("Noise filter (OpenCV medianBlur)", medianTime, "Noise filter (bit-packed majority)", majorityTime);
+
+        // Assert
+        PixelBuffer imgMajority = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+        filteredBits.unpack(imgMajority.getPixels());
+        Assert.assertEquals(0, Core.countNonZero(diff(imgMedian, imgMajority.getMat())));
+    }
+
+    @Test
+    public void binaryDilation_matchesOpenCv() {
+        // Arrange
+        // A person standing in front of the lower left part of the board.
+        PixelBuffer imgSegMap = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+        imgSegMap.getMat().setTo(new Scalar(0));
+        imgSegMap.getMat().submat(300, FRAME_HEIGHT, 200, 500).setTo(new Scalar(255));
+        BinaryImage segMask = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        segMask.pack(imgSegMap.getPixels());
+        BinaryImage dilatedBits = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        PixelBuffer imgDilatedBits = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+        BinaryMorphology morphology = new BinaryMorphology();
+
+        Mat rectKernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(21, 21));
+        Mat ellipseKernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_ELLIPSE, new Size(20, 20));
+        Mat imgDilated = new Mat();
+
+        // Act & Assert
+        // Rectangles are exact.
+        long rectTime = time(i -> Imgproc.dilate(imgSegMap.getMat(), imgDilated, rectKernel));
+        long rectBitsTime = time(i -> morphology.dilateRect(segMask, dilatedBits, 21, 21));
+        logComparison("Dilation 21x21 rect (OpenCV)", rectTime, "Dilation 21x21 rect (bit-packed)", rectBitsTime);
+        dilatedBits.unpack(imgDilatedBits.getPixels());
+        Assert.assertEquals(0, Core.countNonZero(diff(imgDilated, imgDilatedBits.getMat())));
+
+        // The segmentation margin is approximated by an octagon, so it only has to cover about the same area.
+        long ellipseTime = time(i -> Imgproc.dilate(imgSegMap.getMat(), imgDilated, ellipseKernel, new Point(-1, -1), 11));
+        long diskTime = time(i -> morphology.dilateDisk(segMask, dilatedBits, 105));
+        logComparison("Segmentation margin, 11 x 20x20 ellipse (OpenCV)", ellipseTime,
+                "Segmentation margin, radius 105 disk (bit-packed)", diskTime);
+        dilatedBits.unpack(imgDilatedBits.getPixels());
+        Mat imgCovered = new Mat();
+        Core.bitwise_and(imgDilated, imgDilatedBits.getMat(), imgCovered);
+        double coverage = (double) Core.countNonZero(imgCovered) / Core.countNonZero(imgDilated);
+        double areaRatio = (double) dilatedBits.countSetBits() / Core.countNonZero(imgDilated);
+        Log.i(TAG, "Segmentation margin coverage " + coverage + ", area ratio " + areaRatio);
+        Assert.assertTrue(coverage > 0.97);
+        Assert.assertTrue(areaRatio < 1.05);
+    }
+
+    @Test
+    public void tiledBinarization_matchesFullBinarization() {
+        // Arrange
+        Mat imgGray = new Mat();
+        Imgproc.cvtColor(loadFrameBgr("test_image.png"), imgGray, Imgproc.COLOR_BGR2GRAY);
+        // The same board with a new stroke in the top left corner.
+        Mat imgGrayStroke = imgGray.clone();
+        Imgproc.line(imgGrayStroke, new Point(24, 40), new Point(104, 56), new Scalar(0), 4);
+        // The same board a bit brighter, so every tile has to be binarized again.
+        Mat imgGrayBrighter = new Mat();
+        Core.add(imgGray, new Scalar(20), imgGrayBrighter);
+        FrameContext context = new FrameContext(FRAME_WIDTH, FRAME_HEIGHT);
+
+        Binarization fullBinarization = new Binarization();
+        context.setInput(0, imgGray, imgGray);
+        fullBinarization.process(context);
+
+        Binarization tiledBinarization = new Binarization();
+        context.setInput(0, imgGray, imgGray);
+        tiledBinarization.process(context);
+
+        // Act
+        long fullTime = time(i -> {
+            context.setInput(i + 1, i % 2 == 0 ? imgGrayBrighter : imgGray, imgGray);
+            fullBinarization.process(context);
+        });
+        long tiledTime = time(i -> {
+            context.setInput(i + 1, i % 2 == 0 ? imgGrayStroke : imgGray, imgGray);
+            tiledBinarization.process(context);
+        });
+        logComparison("Binarization (all tiles)", fullTime, "Binarization (stroke tiles only)", tiledTime);
+
+        // Assert
+        // Ends on the board without the stroke, after which only the tiles around the stroke were dirty.
+        Assert.assertTrue(context.isTileDirty(0, 0));
+        Assert.assertFalse(context.isTileDirty(context.getTileRows() - 1, context.getTileColumns() - 1));
+        BinaryImage tiledBits = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        context.getBinarizedBits().copyTo(tiledBits);
+
+        context.setInput(ROUNDS + 1, imgGray, imgGray);
+        new Binarization().process(context);
+        Assert.assertArrayEquals(context.getBinarizedBits().getWords(), tiledBits.getWords());
+    }
+
+    @Test
+    public void scaledMaskDilation_coversFullResolutionDilation() {
+        // Arrange
+        // Label mask at model output size: a person with a raised arm and a thin object held up, and a bottle.
+        int labelSize = (int) Segmentator.MODEL_INPUT_SIZE.width;
+        PixelBuffer labels = new PixelBuffer(labelSize, labelSize);
+        Scalar person = new Scalar(Segmentator.PERSON_CLASS_ID);
+        Imgproc.ellipse(labels.getMat(), new Point(90, 170), new Size(30, 80), 0, 0, 360, person, -1);
+        Imgproc.rectangle(labels.getMat(), new Point(90, 100), new Point(170, 108), person, -1);
+        Imgproc.line(labels.getMat(), new Point(170, 100), new Point(200, 20), person, 1);
+        Imgproc.rectangle(labels.getMat(), new Point(220, 200), new Point(240, 250), new Scalar(5), -1);
+
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Segmentator segmentator = new Segmentator(appContext);
+        BinaryImage scaledMask = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        BinaryImage fullMask = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        BinaryMorphology morphology = new BinaryMorphology();
+        PixelBuffer imgOccluders = new PixelBuffer(labelSize, labelSize);
+        PixelBuffer imgResized = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+
+        // Act
+        // Margin added at board resolution, as before.
+        long fullTime = time(i -> {
+            Core.compare(labels.getMat(), person, imgOccluders.getMat(), Core.CMP_EQ);
+            Imgproc.resize(imgOccluders.getMat(), imgResized.getMat(), imgResized.getMat().size());
+            fullMask.pack(imgResized.getPixels());
+            morphology.dilateDisk(fullMask, fullMask, Segmentator.DILATION_RADIUS);
+        });
+        long scaledTime = time(i -> segmentator.createSegMask(labels.getPixels(), labelSize, labelSize, scaledMask));
+        segmentator.close();
+        logComparison("Mask margin (board resolution)", fullTime,
+                "Mask margin (1/" + Segmentator.DILATION_SCALE + " resolution, scaled up)", scaledTime);
+
+        // Assert
+        // All of the occluders with their margin are still covered, and not much else.
+        long[] fullWords = fullMask.getWords();
+        long[] scaledWords = scaledMask.getWords();
+        int uncovered = 0;
+        for (int i = 0; i < fullWords.length; i++) {
+            uncovered += Long.bitCount(fullWords[i] & ~scaledWords[i]);
+        }
+        Log.i(TAG, "Mask margin: " + uncovered + " of " + fullMask.countSetBits() + " pixels uncovered, "
+                + scaledMask.countSetBits() + " pixels masked");
+        Assert.assertTrue(uncovered <= fullMask.countSetBits() / 100);
+        Assert.assertTrue(scaledMask.countSetBits() <= fullMask.countSetBits() * 1.1);
+    }
+
+    @Test
+    public void maskPropagation_followsMovingOccluder() {
+        // Arrange
+        // A textured presenter in front of the board, 60 pixels further right in the second frame.
+        Mat imgBoard = new Mat();
+        Imgproc.cvtColor(loadFrameBgr("test_image.png"), imgBoard, Imgproc.COLOR_BGR2GRAY);
+        Mat imgTexture = new Mat(FRAME_HEIGHT, FRAME_WIDTH, CvType.CV_8UC1);
+        Core.randu(imgTexture, 40, 200);
+        Imgproc.GaussianBlur(imgTexture, imgTexture, new Size(9, 9), 0);
+
+        PixelBuffer presenterBefore = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+        PixelBuffer presenterAfter = new PixelBuffer(FRAME_HEIGHT, FRAME_WIDTH);
+        Imgproc.ellipse(presenterBefore.getMat(), new Point(500, 600), new Size(150, 360), 0, 0, 360, new Scalar(255), -1);
+        Imgproc.ellipse(presenterAfter.getMat(), new Point(560, 600), new Size(150, 360), 0, 0, 360, new Scalar(255), -1);
+        Mat imgBefore = imgBoard.clone();
+        imgTexture.copyTo(imgBefore, presenterBefore.getMat());
+        Mat imgAfter = imgBoard.clone();
+        // The texture moves with the presenter.
+        Mat imgTextureMoved = new Mat(FRAME_HEIGHT, FRAME_WIDTH, CvType.CV_8UC1, new Scalar(0));
+        imgTexture.colRange(0, FRAME_WIDTH - 60).copyTo(imgTextureMoved.colRange(60, FRAME_WIDTH));
+        imgTextureMoved.copyTo(imgAfter, presenterAfter.getMat());
+
+        BinaryImage maskBefore = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        maskBefore.pack(presenterBefore.getPixels());
+        BinaryImage maskAfter = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        maskAfter.pack(presenterAfter.getPixels());
+        MaskPropagator propagator = new MaskPropagator(FRAME_WIDTH, FRAME_HEIGHT, 2);
+        BinaryImage propagated = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+
+        // Act
+        long propagationTime = time(i -> {
+            propagator.addFrame(2 * i, imgBefore);
+            propagator.addFrame(2 * i + 1, imgAfter);
+            propagator.propagate(maskBefore, 2 * i, 2 * i + 1, propagated);
+        });
+        logTiming("Mask propagation (1/" + MaskPropagator.FLOW_SCALE + " resolution flow)", propagationTime);
+
+        // Latency added to the commit thread for each frame committed against a moved mask: the luma of the frame,
+        // the flow from the frame of the mask and the margin for one frame of age, as in SegmentationLane.process.
+        MaskPropagator lanePropagator = new MaskPropagator(FRAME_WIDTH, FRAME_HEIGHT, ROUNDS + 2);
+        lanePropagator.addFrame(0, imgBefore);
+        BinaryImage lanePropagated = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        BinaryImage laneMask = new BinaryImage(FRAME_HEIGHT, FRAME_WIDTH);
+        BinaryMorphology morphology = new BinaryMorphology();
+        long commitTime = time(i -> {
+            lanePropagator.addFrame(i + 1, imgAfter);
+            lanePropagator.propagate(maskBefore, 0, i + 1, lanePropagated);
+            morphology.dilateDisk(lanePropagated, laneMask, SegmentationLane.PROPAGATED_MARGIN_PER_FRAME);
+        });
+        logTiming("Commit thread latency with a moved mask (luma, flow, margin)", commitTime);
+
+        // Assert
+        // The moved presenter is covered by the moved mask, which the mask as it was does not.
+        long[] afterWords = maskAfter.getWords();
+        long[] beforeWords = maskBefore.getWords();
+        long[] propagatedWords = propagated.getWords();
+        int uncoveredBefore = 0;
+        int uncoveredPropagated = 0;
+        for (int i = 0; i < afterWords.length; i++) {
+            uncoveredBefore += Long.bitCount(afterWords[i] & ~beforeWords[i]);
+            uncoveredPropagated += Long.bitCount(afterWords[i] & ~propagatedWords[i]);
+            // Never less than the mask as it was.
+            Assert.assertEquals(0, beforeWords[i] & ~propagatedWords[i]);
+        }
+        Log.i(TAG, "Mask propagation: " + uncoveredPropagated + " of " + maskAfter.countSetBits()
+                + " pixels uncovered, " + uncoveredBefore + " without propagation");
+        Assert.assertTrue(uncoveredPropagated <= maskAfter.countSetBits() / 100);
+        Assert.assertTrue(uncoveredPropagated < uncoveredBefore / 4);
+    }
+
+    @Test
+    public void matPool_keepsLiveMatsFlat() {
+        // Arrange
+        Mat imgBgr = loadFrameBgr("test_image.png");
+        CornerDetector cornerDetector = new CornerDetector();
+        cornerDetector.findCorners(imgBgr); // Fills the pool.
+        int liveMatsBefore = MatPool.getInstance().getLiveMatCount();
+
+        // Act
+        long time = time(i -> cornerDetector.findCorners(imgBgr));
+
+        logTiming("Corner detection (pooled mats)", time);
+        Log.i(TAG, "Live mats: " + MatPool.getInstance().getLiveMatCount() + ", pooled: " + MatPool.getInstance().getPooledMatCount());
+
+        // Assert
+        Assert.assertEquals(liveMatsBefore, MatPool.getInstance().getLiveMatCount());
+    }
+
+    private Mat diff(Mat img1, Mat img2) {
+        Mat imgDiff = new Mat();
+        Core.absdiff(img1, img2, imgDiff);
+        return imgDiff;
+    }
+
+    // One round of a benchmark, given its index.
+    private interface Round {
+        void run(int round);
+    }
+
+    // Runs ROUNDS rounds and returns the total time in nanoseconds.
+    private long time(Round round) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            round.run(i);
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private void logTiming(String name, long totalNanos) {
+        Log.i(TAG, name + ": " + (totalNanos / 1e6 / ROUNDS) + " ms per frame (" + ROUNDS + " rounds)");
+    }
+
+    // Logs the time of a path next to the path it replaces.
+    private void logComparison(String baselineName, long baselineNanos, String name, long totalNanos) {
+        logTiming(baselineName, baselineNanos);
+        logTiming(name, totalNanos);
+        Log.i(TAG, name + ": " + String.format(Locale.US, "%.2f", (double) baselineNanos / totalNanos) + "x the speed of " + baselineName);
+    }
+
+    // Converts an NV21 buffer to BGR the way it was done before the direct conversion, through a JPEG.
+    private Mat nv21ToBgrThroughJpeg(byte[] nv21) {
+        Bitmap bitmapRgb = MatConverter.nv21ToBitmap(nv21, FRAME_WIDTH, FRAME_HEIGHT);
+        Mat imgRgb = new Mat();
+        Utils.bitmapToMat(bitmapRgb, imgRgb);
+        Mat imgBgr = new Mat();
+        Imgproc.cvtColor(imgRgb, imgBgr, Imgproc.COLOR_RGB2BGR);
+        return imgBgr;
+    }
+
+    // Loads an asset and resizes it to the analysis resolution.
+    private Mat loadFrameBgr(String fileName) {
+        Bitmap bitmap = loadBitmap(fileName);
+        Mat imgRgba = new Mat();
+        Utils.bitmapToMat(bitmap, imgRgba);
+
+        Mat imgBgr = new Mat();
+        Imgproc.cvtColor(imgRgba, imgBgr, Imgproc.COLOR_RGBA2BGR);
+        Imgproc.resize(imgBgr, imgBgr, new Size(FRAME_WIDTH, FRAME_HEIGHT));
+        return imgBgr;
+    }
+
+    // Builds the NV21 buffer a camera would deliver for the given frame.
+    // OpenCV only encodes planar I420, so the U and V planes are interleaved by hand.
+    private byte[] bgrToNv21(Mat imgBgr) {
+        Mat imgI420 = new Mat();
+        Imgproc.cvtColor(imgBgr, imgI420, Imgproc.COLOR_BGR2YUV_I420);
+        byte[] i420 = new byte[(int) imgI420.total()];
+        imgI420.get(0, 0, i420);
+
+        int ySize = imgBgr.width() * imgBgr.height();
+        int uvSize = ySize / 4;
+        byte[] nv21 = new byte[ySize + uvSize * 2];
+        System.arraycopy(i420, 0, nv21, 0, ySize);
+        for (int i = 0; i < uvSize; i++) {
+            nv21[ySize + 2 * i] = i420[ySize + uvSize + i]; // V
+            nv21[ySize + 2 * i + 1] = i420[ySize + i]; // U
+        }
+        return nv21;
+    }
+
+    // Loads bitmap from asset directory.
+    private Bitmap loadBitmap(String fileName) {
+        Context appContext = InstrumentationRegistry.getInstrumentation().getContext();
+        AssetManager assetManager = appContext.getAssets();
+
+        InputStream stream = null;
+        try {
+            stream = assetManager.open(fileName);
+        } catch (IOException e) {
+            System.out.println("Unable to load file: " + fileName);
+            e.printStackTrace();
+        }
+
+        return BitmapFactory.decodeStream(stream);
+    }
+}
@@ -17,6 +17,7 @@ import com.whiteboardapp.core.CaptureService;
 import com.whiteboardapp.core.pipeline.Binarization;
 import com.whiteboardapp.core.pipeline.ChangeDetector;
 import com.whiteboardapp.core.pipeline.CornerDetector;
+import com.whiteboardapp.core.pipeline.FrameContext;
 import com.whiteboardapp.core.pipeline.PerspectiveTransformer;
 import com.whiteboardapp.core.pipeline.Segmentator;
 
@@ -25,9 +26,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
+import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
@@ -44,6 +48,9 @@ import java.io.InputStream;
 @RunWith(AndroidJUnit4.class)
 public class InstrumentedTest {
 
+    // Gray level difference above which two pixels are counted as different, well above JPEG noise.
+    private static final int PIXEL_TOLERANCE = 48;
+
     // Initialize openCV library
     static {
         if (OpenCVLoader.initDebug()) {
@@ -109,9 +116,30 @@ public class InstrumentedTest {
         actualBitmap = loadImageFromStorage("actual_perspective.jpg");
 
         // ASSERT
-        boolean isSame = expectedBitmap.sameAs(actualBitmap);
-        Assert.assertTrue(isSame);
+        // The single warp interpolates once instead of three times, so edges differ slightly from the reference.
+        assertSimilar(expectedBitmap, actualBitmap, 0.01);
+
+    }
 
+    // Asserts that at most the given fraction of the pixels of the two images differ by more than PIXEL_TOLERANCE,
+    // for outputs that only change by resampling, unlike the exact Bitmap.sameAs.
+    private static void assertSimilar(Bitmap expectedBitmap, Bitmap actualBitmap, double maxDifferentFraction) {
+        Assert.assertEquals(expectedBitmap.getWidth(), actualBitmap.getWidth());
+        Assert.assertEquals(expectedBitmap.getHeight(), actualBitmap.getHeight());
+
+        Mat expected = new Mat();
+        Utils.bitmapToMat(expectedBitmap, expected);
+        Imgproc.cvtColor(expected, expected, Imgproc.COLOR_RGBA2GRAY);
+        Mat actual = new Mat();
+        Utils.bitmapToMat(actualBitmap, actual);
+        Imgproc.cvtColor(actual, actual, Imgproc.COLOR_RGBA2GRAY);
+
+        Mat difference = new Mat();
+        Core.absdiff(expected, actual, difference);
+        Imgproc.threshold(difference, difference, PIXEL_TOLERANCE, 255, Imgproc.THRESH_BINARY);
+        double differentFraction = (double) Core.countNonZero(difference) / difference.total();
+        Assert.assertTrue("Images differ in " + differentFraction * 100 + " % of the pixels",
+                differentFraction <= maxDifferentFraction);
     }
 
     private Bitmap getBitmapChanges() {
@@ -162,6 +190,37 @@ public class InstrumentedTest {
         Assert.assertTrue(isSame);
     }
 
+    @Test
+    public void binarization_findsDotSizedMarks() {
+        // Arrange
+        // A 3x3 dot inside one thumbnail cell, which moves the mean of the cell by less than a noticeable change.
+        int width = 1280;
+        int height = 960;
+        Mat imgBoard = new Mat(height, width, CvType.CV_8UC1, new Scalar(200));
+        Mat imgDot = imgBoard.clone();
+        Imgproc.rectangle(imgDot, new Point(300, 200), new Point(302, 202), new Scalar(100), -1);
+        FrameContext context = new FrameContext(width, height);
+        Binarization binarization = new Binarization();
+        context.setInput(0, imgBoard, imgBoard);
+        binarization.process(context);
+
+        // Act
+        boolean isDotTileDirty = false;
+        for (int i = 1; i <= context.getTileRows(); i++) {
+            context.setInput(i, imgDot, imgBoard);
+            binarization.process(context);
+            isDotTileDirty |= context.isTileDirty(200 / FrameContext.TILE_SIZE, 300 / FrameContext.TILE_SIZE);
+        }
+
+        // Assert
+        // Found within one round of the tile rows, and no other tile changed.
+        Assert.assertTrue(isDotTileDirty);
+        Assert.assertFalse(context.getBinarizedBits().get(201, 301));
+        int blackPixels = width * height - context.getBinarizedBits().countSetBits();
+        Assert.assertTrue(blackPixels > 0 && blackPixels <= 9);
+        Assert.assertFalse(context.isTileDirty(context.getTileRows() - 1, context.getTileColumns() - 1));
+    }
+
     @Test
     public void detectChanges_returnsCorrectImage() {
 //        Bitmap changeBitmap = getBitmapChanges();
@@ -248,8 +307,9 @@ public class InstrumentedTest {
         Bitmap expectedBitmap = loadBitmap(refFilePath);
 
 //        // ASSERT
-        boolean isSame = expectedBitmap.sameAs(actualBitmap);
-        Assert.assertTrue(isSame);
+        // The margin is now a disk added at a quarter of the resolution and scaled up in blocks, instead of
+        // iterations of an ellipse, so its outline differs slightly from the reference.
+        assertSimilar(expectedBitmap, actualBitmap, 0.05);
     }
 
     private Bitmap getBitmapCaptureService() {
@@ -288,8 +348,9 @@ public class InstrumentedTest {
         Bitmap expectedBitmap = loadBitmap(refFilePath);
 
 //        // ASSERT
-        boolean isSame = expectedBitmap.sameAs(actualBitmap);
-        Assert.assertTrue(isSame);
+        // Segmented at model input size with the new margin, so the masked area, and with it the committed
+        // strokes along its outline, differ slightly from the reference.
+        assertSimilar(expectedBitmap, actualBitmap, 0.02);
 
     }
 
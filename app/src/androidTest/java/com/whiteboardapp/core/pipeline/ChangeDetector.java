@@ -0,0 +1,69 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.PixelBuffer;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Core;
+
+import java.nio.ByteBuffer;
+
+// Detects changes between the binarized board and the model that persisted over two frames.
+// Reference implementation for the tests, the pipeline does this in ModelCommitter.
+public class ChangeDetector implements EightBitStage {
+
+    // Changes of the previous and the current frame, swapped every frame.
+    private PixelBuffer prevChanges;
+    private PixelBuffer currentChanges;
+    private boolean hasPrevChanges = false;
+
+    // Detects changes between the binarized board and the masked model of the context.
+    @Override
+    public void process(EightBitFrameContext context) {
+        Mat imgBinarized = context.getBinarized();
+        ensureBuffers(imgBinarized.rows(), imgBinarized.cols());
+
+        Core.absdiff(imgBinarized, context.getMaskedModel(), currentChanges.getMat());
+        getPersistentChanges(context.getPersistentChangesPixels());
+    }
+
+    // Detects changes
+    // NB: Mats' should be binary images ie. 1 channel
+    public Mat detectChanges(Mat img1, Mat img2) {
+        ensureBuffers(img1.rows(), img1.cols());
+
+        Core.absdiff(img1, img2, currentChanges.getMat());
+
+        PixelBuffer persistentChanges = new PixelBuffer(img1.rows(), img1.cols());
+        getPersistentChanges(persistentChanges.getPixels());
+
+        // Copied, as the returned mat must not depend on the pixel buffer staying alive.
+        return persistentChanges.getMat().clone();
+    }
+
+    private void ensureBuffers(int rows, int cols) {
+        if (currentChanges == null || currentChanges.rows() != rows || currentChanges.cols() != cols) {
+            prevChanges = new PixelBuffer(rows, cols);
+            currentChanges = new PixelBuffer(rows, cols);
+            hasPrevChanges = false;
+        }
+    }
+
+    // Writes the changes that survived from the previous round as white on black background.
+    // Then makes the current changes the previous ones for the next round.
+    private void getPersistentChanges(ByteBuffer persistentChanges) {
+        ByteBuffer current = currentChanges.getPixels();
+        ByteBuffer prev = prevChanges.getPixels();
+        int length = currentChanges.size();
+
+        for (int i = 0; i < length; i++) {
+            boolean isPersistent = hasPrevChanges && prev.get(i) == -1 && current.get(i) == -1;
+            persistentChanges.put(i, isPersistent ? (byte) -1 : 0);
+        }
+
+        PixelBuffer swap = prevChanges;
+        prevChanges = currentChanges;
+        currentChanges = swap;
+        hasPrevChanges = true;
+    }
+}
@@ -0,0 +1,68 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.PixelBuffer;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+
+// Frame context with the 8-bit buffers of the stages the bit-packed pipeline replaced (SegmentRemover,
+// ChangeDetector, ModelUpdater). Those stages are kept as reference implementations for the tests, and whoever
+// runs them fills the buffers.
+public class EightBitFrameContext extends FrameContext {
+
+    private final PixelBuffer segMap;
+    private final PixelBuffer binarized;
+    private final PixelBuffer maskedModel;
+    private final PixelBuffer persistentChanges;
+
+    public EightBitFrameContext(int width, int height) {
+        super(width, height);
+        segMap = new PixelBuffer(height, width);
+        binarized = new PixelBuffer(height, width);
+        maskedModel = new PixelBuffer(height, width);
+        persistentChanges = new PixelBuffer(height, width);
+    }
+
+    // White where people or other objects are in front of the board.
+    public Mat getSegMap() {
+        return segMap.getMat();
+    }
+
+    public ByteBuffer getSegMapPixels() {
+        return segMap.getPixels();
+    }
+
+    // Black strokes on white background.
+    public Mat getBinarized() {
+        return binarized.getMat();
+    }
+
+    public ByteBuffer getBinarizedPixels() {
+        return binarized.getPixels();
+    }
+
+    // Current model with the segmented area set to background.
+    public Mat getMaskedModel() {
+        return maskedModel.getMat();
+    }
+
+    public ByteBuffer getMaskedModelPixels() {
+        return maskedModel.getPixels();
+    }
+
+    // White where changes have persisted, black elsewhere.
+    public Mat getPersistentChanges() {
+        return persistentChanges.getMat();
+    }
+
+    public ByteBuffer getPersistentChangesPixels() {
+        return persistentChanges.getPixels();
+    }
+
+    // Number of pixels of the board.
+    public int getPixelCount() {
+        return segMap.size();
+    }
+}
@@ -0,0 +1,8 @@
+package com.whiteboardapp.core.pipeline;
+
+
+// A reference stage working on the 8-bit buffers of an EightBitFrameContext, see FrameStage.
+public interface EightBitStage {
+
+    void process(EightBitFrameContext context);
+}
@@ -0,0 +1,31 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.PixelBuffer;
+
+import java.nio.ByteBuffer;
+
+// Commits persistent changes to the model: where a change has persisted, the model takes the binarized value.
+// Reference implementation for the tests, the pipeline does this in ModelCommitter.
+public class ModelUpdater implements EightBitStage {
+
+    private final PixelBuffer currentModel;
+
+    public ModelUpdater(PixelBuffer currentModel) {
+        this.currentModel = currentModel;
+    }
+
+    @Override
+    public void process(EightBitFrameContext context) {
+        ByteBuffer model = currentModel.getPixels();
+        ByteBuffer changes = context.getPersistentChangesPixels();
+        ByteBuffer binarized = context.getBinarizedPixels();
+
+        int length = currentModel.size();
+        for (int i = 0; i < length; i++) {
+            if (changes.get(i) == -1) {
+                model.put(i, binarized.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.PixelBuffer;
+
+import java.nio.ByteBuffer;
+
+// Removes the segmented area (people and objects in front of the board) before change detection, by setting it
+// to background in both the binarized board and a copy of the model. Changes behind occluders are thus ignored.
+// Reference implementation for the tests, the pipeline does this in ModelCommitter.
+public class SegmentRemover implements EightBitStage {
+
+    private final PixelBuffer currentModel;
+
+    public SegmentRemover(PixelBuffer currentModel) {
+        this.currentModel = currentModel;
+    }
+
+    @Override
+    public void process(EightBitFrameContext context) {
+        ByteBuffer binarized = context.getBinarizedPixels();
+        ByteBuffer segMap = context.getSegMapPixels();
+        ByteBuffer model = currentModel.getPixels();
+        ByteBuffer maskedModel = context.getMaskedModelPixels();
+
+        int length = context.getPixelCount();
+        for (int i = 0; i < length; i++) {
+            if (segMap.get(i) == -1) {
+                binarized.put(i, (byte) -1);
+                maskedModel.put(i, (byte) -1);
+            } else {
+                maskedModel.put(i, model.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.whiteboardapp.common;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Binary image with one bit per pixel, packed into 64-bit words.
+// A set bit is a white (255) pixel of the corresponding 8-bit image. Each row starts at a new word, pixel
+// (row, col) is bit col % 64 of word row * wordsPerRow + col / 64. Bits past the last column are always 0,
+// so kernels can combine whole words with &, |, ^ without masking the end of the row.
+// 8 times smaller than the 8-bit image, and 64 pixels are combined per operation.
+public class BinaryImage {
+
+    // Mask of the most significant bit of each byte in a word.
+    private static final long BYTE_MSB_MASK = 0x8080808080808080L;
+    // Moves the most significant bit of byte i to bit 56 + i.
+    private static final long GATHER_MAGIC = 0x0002040810204081L;
+
+    // 8 pixels of 0 or 255 for each combination of 8 bits, in little endian byte order.
+    private static final long[] UNPACK_TABLE = new long[256];
+
+    static {
+        for (int bits = 0; bits < 256; bits++) {
+            long pixels = 0;
+            for (int i = 0; i < 8; i++) {
+                if ((bits & (1 << i)) != 0) {
+                    pixels |= 0xFFL << (8 * i);
+                }
+            }
+            UNPACK_TABLE[bits] = pixels;
+        }
+    }
+
+    private final int rows;
+    private final int cols;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    public BinaryImage(int rows, int cols) {
+        if (rows < 1 || cols < 1) {
+            throw new IllegalArgumentException("Size must be positive, was " + cols + "x" + rows);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        wordsPerRow = (cols + 63) / 64;
+        words = new long[rows * wordsPerRow];
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    // The packed pixels, for kernels working on whole words. Keep the bits past the last column at 0.
+    public long[] getWords() {
+        return words;
+    }
+
+    public boolean get(int row, int col) {
+        return (words[row * wordsPerRow + (col >>> 6)] & (1L << col)) != 0;
+    }
+
+    public void set(int row, int col, boolean value) {
+        int index = row * wordsPerRow + (col >>> 6);
+        if (value) {
+            words[index] |= 1L << col;
+        } else {
+            words[index] &= ~(1L << col);
+        }
+    }
+
+    // Sets all pixels to white or black.
+    public void fill(boolean value) {
+        if (!value) {
+            Arrays.fill(words, 0);
+            return;
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int word = 0; word < wordsPerRow; word++) {
+                words[row * wordsPerRow + word] = getColumnMask(word);
+            }
+        }
+    }
+
+    public void copyTo(BinaryImage dst) {
+        checkSameSize(dst);
+        System.arraycopy(words, 0, dst.words, 0, words.length);
+    }
+
+    // Number of white pixels.
+    public int countSetBits() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    // Mask of the bits of the word in a row that are inside the image.
+    public long getColumnMask(int word) {
+        int remaining = cols - word * 64;
+        return remaining >= 64 ? -1L : (1L << remaining) - 1;
+    }
+
+    // Packs an 8-bit image of the same size, row-major without padding. Pixels of 128 or more become white.
+    // The pixels are read 8 at a time.
+    public void pack(ByteBuffer pixels) {
+        pack(pixels, 0, rows, 0, wordsPerRow);
+    }
+
+    // Packs only the given rows and words of an 8-bit image of the same size. The other pixels are left as they are.
+    public void pack(ByteBuffer pixels, int firstRow, int endRow, int firstWord, int endWord) {
+        checkPixelCount(pixels);
+        checkRegion(firstRow, endRow, firstWord, endWord);
+        boolean isBigEndian = pixels.order() == ByteOrder.BIG_ENDIAN;
+        int endCol = Math.min(endWord * 64, cols);
+
+        for (int row = firstRow; row < endRow; row++) {
+            int rowStart = row * cols;
+            int wordStart = row * wordsPerRow;
+            int col = firstWord * 64;
+            for (; col + 8 <= endCol; col += 8) {
+                long eightPixels = pixels.getLong(rowStart + col);
+                if (isBigEndian) {
+                    eightPixels = Long.reverseBytes(eightPixels);
+                }
+                long bits = ((eightPixels & BYTE_MSB_MASK) * GATHER_MAGIC) >>> 56;
+                if ((col & 63) == 0) {
+                    words[wordStart + (col >>> 6)] = bits;
+                } else {
+                    words[wordStart + (col >>> 6)] |= bits << col;
+                }
+            }
+            for (; col < endCol; col++) {
+                long bit = pixels.get(rowStart + col) < 0 ? 1L : 0L;
+                if ((col & 63) == 0) {
+                    words[wordStart + (col >>> 6)] = bit;
+                } else {
+                    words[wordStart + (col >>> 6)] |= bit << col;
+                }
+            }
+        }
+    }
+
+    // Unpacks into an 8-bit image of the same size, row-major without padding, as 0 and 255.
+    // The pixels are written 8 at a time.
+    public void unpack(ByteBuffer pixels) {
+        unpack(pixels, 0, rows, 0, wordsPerRow);
+    }
+
+    // Unpacks only the given rows and words into an 8-bit image of the same size. The other pixels are left as they are.
+    public void unpack(ByteBuffer pixels, int firstRow, int endRow, int firstWord, int endWord) {
+        checkPixelCount(pixels);
+        checkRegion(firstRow, endRow, firstWord, endWord);
+        boolean isBigEndian = pixels.order() == ByteOrder.BIG_ENDIAN;
+        int endCol = Math.min(endWord * 64, cols);
+
+        for (int row = firstRow; row < endRow; row++) {
+            int rowStart = row * cols;
+            int wordStart = row * wordsPerRow;
+            int col = firstWord * 64;
+            for (; col + 8 <= endCol; col += 8) {
+                int bits = (int) (words[wordStart + (col >>> 6)] >>> col) & 0xFF;
+                long eightPixels = UNPACK_TABLE[bits];
+                pixels.putLong(rowStart + col, isBigEndian ? Long.reverseBytes(eightPixels) : eightPixels);
+            }
+            for (; col < endCol; col++) {
+                pixels.put(rowStart + col, get(row, col) ? (byte) -1 : 0);
+            }
+        }
+    }
+
+    // Scales up by a whole factor into dst, every pixel becoming a factor x factor block.
+    // dst may be up to factor - 1 pixels smaller than the scaled image in each direction; the blocks at the end are cut.
+    // Rows of dst from the same row are copied instead of scaled again.
+    public void scaleUp(BinaryImage dst, int factor) {
+        if (factor < 1 || factor > 64 || (dst.rows + factor - 1) / factor != rows || (dst.cols + factor - 1) / factor != cols) {
+            throw new IllegalArgumentException("Image size " + dst.cols + "x" + dst.rows + " is not " + cols + "x" + rows
+                    + " scaled up by " + factor);
+        }
+
+        for (int dstRow = 0; dstRow < dst.rows; dstRow++) {
+            int dstStart = dstRow * dst.wordsPerRow;
+            if (dstRow % factor != 0) {
+                System.arraycopy(dst.words, dstStart - dst.wordsPerRow, dst.words, dstStart, dst.wordsPerRow);
+                continue;
+            }
+
+            Arrays.fill(dst.words, dstStart, dstStart + dst.wordsPerRow, 0);
+            int srcStart = (dstRow / factor) * wordsPerRow;
+            long blockBits = factor == 64 ? -1L : (1L << factor) - 1;
+            for (int word = 0; word < wordsPerRow; word++) {
+                long bits = words[srcStart + word];
+                while (bits != 0) {
+                    int dstCol = (word * 64 + Long.numberOfTrailingZeros(bits)) * factor;
+                    bits &= bits - 1;
+
+                    // A block may straddle two words.
+                    for (int col = dstCol; col < Math.min(dstCol + factor, dst.cols); col += 64 - (col & 63)) {
+                        dst.words[dstStart + (col >>> 6)] |= (blockBits >>> (col - dstCol)) << col;
+                    }
+                }
+            }
+            dst.words[dstStart + dst.wordsPerRow - 1] &= dst.getColumnMask(dst.wordsPerRow - 1);
+        }
+    }
+
+    public void checkSameSize(BinaryImage other) {
+        if (other.rows != rows || other.cols != cols) {
+            throw new IllegalArgumentException("Image size " + other.cols + "x" + other.rows + " does not match " + cols + "x" + rows);
+        }
+    }
+
+    // Checks a region given as rows and words, end exclusive.
+    public void checkRegion(int firstRow, int endRow, int firstWord, int endWord) {
+        if (firstRow < 0 || endRow > rows || firstRow > endRow || firstWord < 0 || endWord > wordsPerRow || firstWord > endWord) {
+            throw new IllegalArgumentException("Region rows " + firstRow + "-" + endRow + ", words " + firstWord + "-" + endWord
+                    + " is outside the image of " + rows + " rows and " + wordsPerRow + " words");
+        }
+    }
+
+    private void checkPixelCount(ByteBuffer pixels) {
+        if (pixels.capacity() != rows * cols) {
+            throw new IllegalArgumentException("Buffer holds " + pixels.capacity() + " pixels, image has " + rows * cols);
+        }
+    }
+}
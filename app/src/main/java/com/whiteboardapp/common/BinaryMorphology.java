@@ -0,0 +1,312 @@
+package com.whiteboardapp.common;
+
+
+// Morphology on bit-packed binary images, working on 64 pixels per word operation.
+// Dilation and erosion with rectangular elements give the same result as OpenCV's dilate and erode with a
+// MORPH_RECT element and default anchor and border. Rectangles are applied separably with shifted copies that
+// double in reach, so their cost grows with the log of the element size.
+// Disks are approximated by octagons: a square, plus a diamond made of two diagonal lines and a cross.
+// The diagonal lines are also applied with doubling shifts, so large disks stay cheap.
+// Keeps scratch images between calls, so use one instance per thread.
+public class BinaryMorphology {
+
+    // Share of an octagon's radius taken by the square, the rest is added by the diamond.
+    // sqrt(2) - 1 makes the octagon reach as far along the diagonals as along the axes.
+    private static final double OCTAGON_SQUARE_SHARE = Math.sqrt(2) - 1;
+
+    private BinaryImage scratch;
+    private long[] rowScratch;
+    private long[] rowShifted;
+
+    // Dilates with a rectangle of the given size. The anchor is at the center, like OpenCV's default.
+    // Pixels outside the image do not count. src and dst may be the same image.
+    public void dilateRect(BinaryImage src, BinaryImage dst, int kernelWidth, int kernelHeight) {
+        if (kernelWidth < 1 || kernelHeight < 1) {
+            throw new IllegalArgumentException("Kernel size must be positive, was " + kernelWidth + "x" + kernelHeight);
+        }
+        src.checkSameSize(dst);
+        int wordsPerRow = src.getWordsPerRow();
+        ensureRowScratch(wordsPerRow);
+
+        // Along the rows: dst(x) = OR of src(x - anchor .. x - anchor + width - 1).
+        int before = kernelWidth / 2;
+        int after = kernelWidth - 1 - before;
+        long[] srcWords = src.getWords();
+        long[] dstWords = dst.getWords();
+        for (int row = 0; row < src.rows(); row++) {
+            System.arraycopy(srcWords, row * wordsPerRow, rowScratch, 0, wordsPerRow);
+            // Forward first, as shifting backward moves pixels into the unused bits at the end of the row.
+            for (int covered = 0; covered < after; ) {
+                int step = Math.min(covered + 1, after - covered);
+                orShiftedRow(rowScratch, step, wordsPerRow);
+                covered += step;
+            }
+            for (int covered = 0; covered < before; ) {
+                int step = Math.min(covered + 1, before - covered);
+                orShiftedRow(rowScratch, -step, wordsPerRow);
+                covered += step;
+            }
+            System.arraycopy(rowScratch, 0, dstWords, row * wordsPerRow, wordsPerRow);
+            clearPadding(dst, row);
+        }
+
+        // Along the columns, the same on whole rows.
+        before = kernelHeight / 2;
+        after = kernelHeight - 1 - before;
+        int rows = dst.rows();
+        for (int covered = 0; covered < after; ) {
+            int step = Math.min(covered + 1, after - covered);
+            // Top to bottom, so the rows read below are not yet changed.
+            for (int i = 0; i < (rows - step) * wordsPerRow; i++) {
+                dstWords[i] |= dstWords[i + step * wordsPerRow];
+            }
+            covered += step;
+        }
+        for (int covered = 0; covered < before; ) {
+            int step = Math.min(covered + 1, before - covered);
+            // Bottom to top, so the rows read above are not yet changed.
+            for (int i = dstWords.length - 1; i >= step * wordsPerRow; i--) {
+                dstWords[i] |= dstWords[i - step * wordsPerRow];
+            }
+            covered += step;
+        }
+    }
+
+    // Erodes with a rectangle of the given size. The anchor is at the center, like OpenCV's default.
+    // Pixels outside the image do not count. src and dst may be the same image.
+    public void erodeRect(BinaryImage src, BinaryImage dst, int kernelWidth, int kernelHeight) {
+        // Erosion is dilation of the background. The background outside the image is 0, so it does not count either.
+        invert(src, dst);
+        dilateRect(dst, dst, kernelWidth, kernelHeight);
+        invert(dst, dst);
+    }
+
+    // Dilates with an octagon approximating a disk of the given radius. src and dst may be the same image.
+    public void dilateDisk(BinaryImage src, BinaryImage dst, int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("Radius must not be negative, was " + radius);
+        }
+
+        // Two diagonal lines of 2 * lineRadius + 1 pixels make a diamond with holes on every other pixel,
+        // the cross fills them and adds one. The square makes up the rest of the radius.
+        int diamondRadius = radius - (int) Math.round(radius * OCTAGON_SQUARE_SHARE);
+        int lineRadius = Math.max(diamondRadius - 1, 0) / 2;
+        int squareRadius = diamondRadius == 0 ? radius : radius - (2 * lineRadius + 1);
+
+        dilateRect(src, dst, 2 * squareRadius + 1, 2 * squareRadius + 1);
+        if (diamondRadius > 0) {
+            dilateDiagonal(dst, lineRadius, 1);
+            dilateDiagonal(dst, lineRadius, -1);
+            dilateCross(dst);
+        }
+    }
+
+    // Erodes with an octagon approximating a disk of the given radius. src and dst may be the same image.
+    public void erodeDisk(BinaryImage src, BinaryImage dst, int radius) {
+        invert(src, dst);
+        dilateDisk(dst, dst, radius);
+        invert(dst, dst);
+    }
+
+    // Sets a pixel if at least 5 of the pixels in its 3x3 neighbourhood are set.
+    // The same as OpenCV's medianBlur with kernel size 3 on a binary image, including the replicated border.
+    // src and dst must not be the same image.
+    public void majority3x3(BinaryImage src, BinaryImage dst) {
+        majority3x3(src, dst, 0, src.rows(), 0, src.getWordsPerRow());
+    }
+
+    // Runs the majority filter only on the given rows and words, reading the neighbours around them from src.
+    public void majority3x3(BinaryImage src, BinaryImage dst, int firstRow, int endRow, int firstWord, int endWord) {
+        src.checkSameSize(dst);
+        src.checkRegion(firstRow, endRow, firstWord, endWord);
+        if (src == dst) {
+            throw new IllegalArgumentException("Majority filter cannot run in place");
+        }
+        int rows = src.rows();
+        int wordsPerRow = src.getWordsPerRow();
+        long[] srcWords = src.getWords();
+        long[] dstWords = dst.getWords();
+        int lastBit = (src.cols() - 1) & 63;
+
+        for (int row = firstRow; row < endRow; row++) {
+            // Replicated border: the rows above the first and below the last are copies of them.
+            int above = Math.max(row - 1, 0) * wordsPerRow;
+            int center = row * wordsPerRow;
+            int below = Math.min(row + 1, rows - 1) * wordsPerRow;
+
+            for (int word = firstWord; word < endWord; word++) {
+                boolean isFirst = word == 0;
+                boolean isLast = word == wordsPerRow - 1;
+
+                long a1 = srcWords[above + word];
+                long c1 = srcWords[center + word];
+                long b1 = srcWords[below + word];
+                long a0 = neighbourLeft(srcWords, above, word, isFirst);
+                long c0 = neighbourLeft(srcWords, center, word, isFirst);
+                long b0 = neighbourLeft(srcWords, below, word, isFirst);
+                long a2 = neighbourRight(srcWords, above, word, isLast, lastBit);
+                long c2 = neighbourRight(srcWords, center, word, isLast, lastBit);
+                long b2 = neighbourRight(srcWords, below, word, isLast, lastBit);
+
+                // Counts the 9 bits of every pixel in parallel with full adders.
+                long s1 = a0 ^ a1 ^ a2;
+                long k1 = (a0 & a1) | (a2 & (a0 ^ a1));
+                long s2 = c0 ^ c1 ^ c2;
+                long k2 = (c0 & c1) | (c2 & (c0 ^ c1));
+                long s3 = b0 ^ b1 ^ b2;
+                long k3 = (b0 & b1) | (b2 & (b0 ^ b1));
+
+                long ones = s1 ^ s2 ^ s3;
+                long k4 = (s1 & s2) | (s3 & (s1 ^ s2));
+
+                long t1 = k1 ^ k2 ^ k3;
+                long f1 = (k1 & k2) | (k3 & (k1 ^ k2));
+                long twos = t1 ^ k4;
+                long f2 = t1 & k4;
+
+                long fours = f1 ^ f2;
+                long eights = f1 & f2;
+
+                // count = 8 * eights + 4 * fours + 2 * twos + ones >= 5
+                dstWords[center + word] = (eights | (fours & (twos | ones))) & src.getColumnMask(word);
+            }
+        }
+    }
+
+    // Sets the pixels that are clear and clears the ones that are set. src and dst may be the same image.
+    public void invert(BinaryImage src, BinaryImage dst) {
+        invert(src, dst, 0, src.rows(), 0, src.getWordsPerRow());
+    }
+
+    // Inverts only the given rows and words.
+    public void invert(BinaryImage src, BinaryImage dst, int firstRow, int endRow, int firstWord, int endWord) {
+        src.checkSameSize(dst);
+        src.checkRegion(firstRow, endRow, firstWord, endWord);
+        long[] srcWords = src.getWords();
+        long[] dstWords = dst.getWords();
+        int wordsPerRow = src.getWordsPerRow();
+        for (int row = firstRow; row < endRow; row++) {
+            for (int word = firstWord; word < endWord; word++) {
+                int i = row * wordsPerRow + word;
+                dstWords[i] = ~srcWords[i] & src.getColumnMask(word);
+            }
+        }
+    }
+
+    // Dilates in place with a diagonal line reaching radius pixels both ways, going down to the right
+    // (direction 1) or down to the left (direction -1).
+    private void dilateDiagonal(BinaryImage image, int radius, int direction) {
+        int rows = image.rows();
+        int wordsPerRow = image.getWordsPerRow();
+        long[] words = image.getWords();
+        ensureRowScratch(wordsPerRow);
+
+        // image(x, y) = OR of image(x + direction * t, y + t) for t in -radius .. radius, with the same doubling
+        // steps as the rectangles. Going down first, top to bottom so the rows read below are not yet changed.
+        for (int covered = 0; covered < radius; ) {
+            int step = Math.min(covered + 1, radius - covered);
+            for (int row = 0; row < rows - step; row++) {
+                orShiftedRow(words, (row + step) * wordsPerRow, row * wordsPerRow, direction * step, wordsPerRow);
+                clearPadding(image, row);
+            }
+            covered += step;
+        }
+        for (int covered = 0; covered < radius; ) {
+            int step = Math.min(covered + 1, radius - covered);
+            for (int row = rows - 1; row >= step; row--) {
+                orShiftedRow(words, (row - step) * wordsPerRow, row * wordsPerRow, -direction * step, wordsPerRow);
+                clearPadding(image, row);
+            }
+            covered += step;
+        }
+    }
+
+    // Dilates in place with a 3x3 cross.
+    private void dilateCross(BinaryImage image) {
+        if (scratch == null || scratch.rows() != image.rows() || scratch.cols() != image.cols()) {
+            scratch = new BinaryImage(image.rows(), image.cols());
+        }
+        image.copyTo(scratch);
+
+        int rows = image.rows();
+        int wordsPerRow = image.getWordsPerRow();
+        long[] srcWords = scratch.getWords();
+        long[] dstWords = image.getWords();
+        for (int row = 0; row < rows; row++) {
+            int center = row * wordsPerRow;
+            for (int word = 0; word < wordsPerRow; word++) {
+                long value = srcWords[center + word];
+                long left = (value << 1) | (word > 0 ? srcWords[center + word - 1] >>> 63 : 0);
+                long right = (value >>> 1) | (word < wordsPerRow - 1 ? srcWords[center + word + 1] << 63 : 0);
+                long above = row > 0 ? srcWords[center - wordsPerRow + word] : 0;
+                long below = row < rows - 1 ? srcWords[center + wordsPerRow + word] : 0;
+                dstWords[center + word] = (value | left | right | above | below) & image.getColumnMask(word);
+            }
+        }
+    }
+
+    // Pixels left of the ones in the word (x - 1), replicating the first pixel of the row.
+    private static long neighbourLeft(long[] words, int rowStart, int word, boolean isFirst) {
+        long value = words[rowStart + word];
+        long carry = isFirst ? value & 1 : words[rowStart + word - 1] >>> 63;
+        return (value << 1) | carry;
+    }
+
+    // Pixels right of the ones in the word (x + 1), replicating the last pixel of the row.
+    private static long neighbourRight(long[] words, int rowStart, int word, boolean isLast, int lastBit) {
+        long value = words[rowStart + word];
+        if (isLast) {
+            return (value >>> 1) | (value & (1L << lastBit));
+        }
+        return (value >>> 1) | (words[rowStart + word + 1] << 63);
+    }
+
+    // Writes a row shifted along x: dst(x) = src(x + offset), 0 where x + offset is outside the row.
+    private static void shiftRow(long[] src, int srcStart, long[] dst, int dstStart, int wordsPerRow, int offset) {
+        int wordShift = Math.abs(offset) >>> 6;
+        int bitShift = Math.abs(offset) & 63;
+        for (int i = 0; i < wordsPerRow; i++) {
+            long value;
+            if (offset >= 0) {
+                int from = i + wordShift;
+                long low = from < wordsPerRow ? src[srcStart + from] : 0;
+                long high = from + 1 < wordsPerRow ? src[srcStart + from + 1] : 0;
+                value = bitShift == 0 ? low : (low >>> bitShift) | (high << (64 - bitShift));
+            } else {
+                int from = i - wordShift;
+                long high = from >= 0 ? src[srcStart + from] : 0;
+                long low = from - 1 >= 0 ? src[srcStart + from - 1] : 0;
+                value = bitShift == 0 ? high : (high << bitShift) | (low >>> (64 - bitShift));
+            }
+            dst[dstStart + i] = value;
+        }
+    }
+
+    // row(x) |= row(x + offset) for a row on its own.
+    private void orShiftedRow(long[] row, int offset, int wordsPerRow) {
+        shiftRow(row, 0, rowShifted, 0, wordsPerRow, offset);
+        for (int i = 0; i < wordsPerRow; i++) {
+            row[i] |= rowShifted[i];
+        }
+    }
+
+    // dst row(x) |= src row(x + offset) for two rows of the same image.
+    private void orShiftedRow(long[] words, int srcStart, int dstStart, int offset, int wordsPerRow) {
+        shiftRow(words, srcStart, rowShifted, 0, wordsPerRow, offset);
+        for (int i = 0; i < wordsPerRow; i++) {
+            words[dstStart + i] |= rowShifted[i];
+        }
+    }
+
+    private static void clearPadding(BinaryImage image, int row) {
+        int lastWord = image.getWordsPerRow() - 1;
+        image.getWords()[row * image.getWordsPerRow() + lastWord] &= image.getColumnMask(lastWord);
+    }
+
+    private void ensureRowScratch(int wordsPerRow) {
+        if (rowScratch == null || rowScratch.length != wordsPerRow) {
+            rowScratch = new long[wordsPerRow];
+            rowShifted = new long[wordsPerRow];
+        }
+    }
+}
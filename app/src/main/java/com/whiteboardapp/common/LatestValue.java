@@ -0,0 +1,59 @@
+package com.whiteboardapp.common;
+
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// Hands the latest of a stream of values from exactly one producer thread to exactly one consumer thread.
+// Values the consumer did not get to are overwritten, so neither side ever waits for the other.
+// Triple buffered: the producer fills one value, the consumer reads another, and the third holds the latest
+// published value. The values are allocated up front and reused, e.g. images filled in place.
+public class LatestValue<T> {
+
+    private static class Slot<T> {
+        final T value;
+        volatile boolean isFresh = false; // Published and not yet read.
+
+        Slot(T value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Slot<T>> latest;
+    private Slot<T> writable; // Only touched by the producer.
+    private Slot<T> readable; // Only touched by the consumer.
+
+    public LatestValue(T first, T second, T third) {
+        writable = new Slot<>(first);
+        latest = new AtomicReference<>(new Slot<>(second));
+        readable = new Slot<>(third);
+    }
+
+    // The value to fill before publishing it. Producer only.
+    public T getWritable() {
+        return writable.value;
+    }
+
+    // Makes the filled value the latest one. The previous latest value, if it was not read, becomes the next
+    // value to fill. Producer only.
+    public void publish() {
+        writable.isFresh = true;
+        writable = latest.getAndSet(writable);
+        writable.isFresh = false;
+    }
+
+    // Switches the readable value to the latest published one. Returns false, keeping the readable value,
+    // if nothing was published since the last switch. Consumer only.
+    public boolean update() {
+        if (!latest.get().isFresh) {
+            return false;
+        }
+        readable = latest.getAndSet(readable);
+        readable.isFresh = false;
+        return true;
+    }
+
+    // The value last switched to with update, or the third value given if update never switched. Consumer only.
+    public T getReadable() {
+        return readable.value;
+    }
+}
@@ -0,0 +1,130 @@
+package com.whiteboardapp.common;
+
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// Pool of Mats recycled by (rows, cols, type), so the capture loop neither allocates native memory every frame
+// nor waits for finalizers to free it. Mats are taken with obtain and given back with recycle or release.
+// Also counts the live Mats it knows of, to make leaks visible. Thread safe.
+// NB: Only the pixel data is freed deterministically. The small native Mat header is still freed by the finalizer.
+public final class MatPool {
+
+    // A frame rarely needs more than a couple of Mats of the same shape at once.
+    private static final int MAX_POOLED_PER_SHAPE = 4;
+
+    private static final MatPool INSTANCE = new MatPool();
+
+    private final Map<Long, ArrayDeque<Mat>> pooledMats = new HashMap<>();
+    private final Set<Mat> pooledSet = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int pooledCount = 0;
+
+    // Mats created or tracked and not yet released, so releasing a Mat twice only counts once.
+    // Weak, so leaked Mats are still freed by the finalizer. Mat does not override equals, so this is by identity.
+    private final Set<Mat> liveSet = Collections.newSetFromMap(new WeakHashMap<>());
+    private int liveCount = 0;
+
+    public static MatPool getInstance() {
+        return INSTANCE;
+    }
+
+    // Returns a Mat of the given shape. The content is undefined.
+    public synchronized Mat obtain(int rows, int cols, int type) {
+        ArrayDeque<Mat> mats = pooledMats.get(getKey(rows, cols, type));
+        if (mats != null && !mats.isEmpty()) {
+            pooledCount--;
+            Mat mat = mats.pop();
+            pooledSet.remove(mat);
+            return mat;
+        }
+
+        Mat mat = new Mat(rows, cols, type);
+        liveSet.add(mat);
+        liveCount++;
+        return mat;
+    }
+
+    public Mat obtain(Size size, int type) {
+        return obtain((int) size.height, (int) size.width, type);
+    }
+
+    // Gives a Mat back for reuse. The Mat must come from obtain or have been tracked.
+    // Submats and Mats the pool has no room for are released.
+    // Throws if the Mat is already in the pool, as two later obtains would then share its pixels.
+    public synchronized void recycle(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        if (pooledSet.contains(mat)) {
+            throw new IllegalStateException("Mat has already been recycled");
+        }
+        if (mat.empty() || mat.isSubmatrix()) {
+            release(mat);
+            return;
+        }
+
+        long key = getKey(mat.rows(), mat.cols(), mat.type());
+        ArrayDeque<Mat> mats = pooledMats.get(key);
+        if (mats == null) {
+            mats = new ArrayDeque<>();
+            pooledMats.put(key, mats);
+        }
+        if (mats.size() >= MAX_POOLED_PER_SHAPE) {
+            release(mat);
+            return;
+        }
+        mats.push(mat);
+        pooledSet.add(mat);
+        pooledCount++;
+    }
+
+    // Starts counting a Mat that was not created by the pool, e.g. the output of an OpenCV function.
+    public synchronized void track(Mat mat) {
+        if (liveSet.add(mat)) {
+            liveCount++;
+        }
+    }
+
+    // Frees the pixel data of a Mat obtained from or tracked by the pool. Releasing a Mat again does nothing.
+    public synchronized void release(Mat mat) {
+        mat.release();
+        if (liveSet.remove(mat)) {
+            liveCount--;
+        }
+    }
+
+    // Frees all pooled Mats, e.g. when capturing stops.
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> mats : pooledMats.values()) {
+            for (Mat mat : mats) {
+                release(mat);
+            }
+        }
+        pooledMats.clear();
+        pooledSet.clear();
+        pooledCount = 0;
+    }
+
+    // Mats created or tracked by the pool and not yet released, whether in use or pooled.
+    // Should stay flat while capturing. A steady increase means Mats are not given back.
+    public synchronized int getLiveMatCount() {
+        return liveCount;
+    }
+
+    // Mats waiting in the pool for reuse.
+    public synchronized int getPooledMatCount() {
+        return pooledCount;
+    }
+
+    private static long getKey(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | type;
+    }
+}
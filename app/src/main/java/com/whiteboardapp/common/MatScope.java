@@ -0,0 +1,70 @@
+package com.whiteboardapp.common;
+
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Owns the Mats used while processing one frame and gives them back when closed:
+//
+//   try (MatScope scope = new MatScope()) {
+//       Mat imgGray = scope.obtain(rows, cols, CvType.CV_8UC1);   // Recycled into the pool on close.
+//       Mat imgEdges = scope.track(new Mat());                    // Released on close.
+//       ...
+//       return scope.detach(imgResult);                           // Outlives the scope.
+//   }
+public class MatScope implements AutoCloseable {
+
+    private final MatPool pool;
+    private final List<Mat> pooledMats = new ArrayList<>();
+    private final List<Mat> trackedMats = new ArrayList<>();
+
+    public MatScope() {
+        this(MatPool.getInstance());
+    }
+
+    public MatScope(MatPool pool) {
+        this.pool = pool;
+    }
+
+    // Returns a Mat of the given shape from the pool. The content is undefined.
+    public Mat obtain(int rows, int cols, int type) {
+        Mat mat = pool.obtain(rows, cols, type);
+        pooledMats.add(mat);
+        return mat;
+    }
+
+    public Mat obtain(Size size, int type) {
+        return obtain((int) size.height, (int) size.width, type);
+    }
+
+    // Releases the Mat when the scope is closed. For Mats of unknown shape, submats and Mat subclasses.
+    public <T extends Mat> T track(T mat) {
+        pool.track(mat);
+        trackedMats.add(mat);
+        return mat;
+    }
+
+    // Removes the Mat from the scope. The caller is then responsible for giving it back.
+    public <T extends Mat> T detach(T mat) {
+        if (!pooledMats.remove(mat) && !trackedMats.remove(mat)) {
+            throw new IllegalArgumentException("Mat is not owned by this scope");
+        }
+        return mat;
+    }
+
+    @Override
+    public void close() {
+        // Submats are released before the Mats they are views of.
+        for (int i = trackedMats.size() - 1; i >= 0; i--) {
+            pool.release(trackedMats.get(i));
+        }
+        for (int i = pooledMats.size() - 1; i >= 0; i--) {
+            pool.recycle(pooledMats.get(i));
+        }
+        trackedMats.clear();
+        pooledMats.clear();
+    }
+}
@@ -0,0 +1,53 @@
+package com.whiteboardapp.common;
+
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// A single channel 8-bit Mat backed by a direct ByteBuffer. OpenCV functions write into the Mat and Java code
+// reads and writes the same memory through the buffer, instead of copying every pixel out with Mat.get and
+// back with Mat.put.
+// NB: OpenCV reallocates a Mat written with another size or type, which detaches it from the buffer.
+// getPixels checks for that, so only write results of the same size into the Mat.
+// The Mat does not keep the buffer alive, so keep the PixelBuffer referenced for as long as the Mat is used.
+public class PixelBuffer {
+
+    private final ByteBuffer pixels;
+    private final Mat mat;
+    private final long dataAddress;
+
+    public PixelBuffer(int rows, int cols) {
+        pixels = ByteBuffer.allocateDirect(rows * cols).order(ByteOrder.nativeOrder());
+        mat = new Mat(rows, cols, CvType.CV_8UC1, pixels);
+        dataAddress = mat.dataAddr();
+    }
+
+    // The pixels as a Mat, for OpenCV functions.
+    public Mat getMat() {
+        return mat;
+    }
+
+    // The pixels in row-major order, for Java code. Index with absolute get/put; the position is not used.
+    public ByteBuffer getPixels() {
+        if (mat.dataAddr() != dataAddress) {
+            throw new IllegalStateException("Mat has been reallocated and no longer shares memory with its buffer");
+        }
+        return pixels;
+    }
+
+    // Number of pixels.
+    public int size() {
+        return pixels.capacity();
+    }
+
+    public int rows() {
+        return mat.rows();
+    }
+
+    public int cols() {
+        return mat.cols();
+    }
+}
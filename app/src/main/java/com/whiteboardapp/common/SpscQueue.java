@@ -0,0 +1,92 @@
+package com.whiteboardapp.common;
+
+
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded queue handing items from exactly one producer thread to exactly one consumer thread.
+// Lock free: only the producer writes the tail index and only the consumer writes the head index.
+// Blocking calls wait by parking the thread briefly, which is cheap at camera frame rates.
+public class SpscQueue<T> {
+
+    private static final long WAIT_NANOS = 100_000; // 0.1 ms
+
+    private final Object[] items;
+    private volatile long head = 0; // Next slot to read. Only written by the consumer.
+    private volatile long tail = 0; // Next slot to write. Only written by the producer.
+    private volatile boolean isClosed = false;
+
+    public SpscQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, was " + capacity);
+        }
+        items = new Object[capacity];
+    }
+
+    // Adds the item if there is room. Producer only.
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new IllegalArgumentException("Item must not be null");
+        }
+        long currentTail = tail;
+        if (currentTail - head == items.length) {
+            return false;
+        }
+        items[(int) (currentTail % items.length)] = item;
+        tail = currentTail + 1; // Publishes the item to the consumer.
+        return true;
+    }
+
+    // Removes the oldest item or returns null if the queue is empty. Consumer only.
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long currentHead = head;
+        if (currentHead == tail) {
+            return null;
+        }
+        int index = (int) (currentHead % items.length);
+        T item = (T) items[index];
+        items[index] = null;
+        head = currentHead + 1; // Hands the slot back to the producer.
+        return item;
+    }
+
+    // Adds the item, waiting for room if the queue is full. Returns false if the queue is closed. Producer only.
+    public boolean put(T item) throws InterruptedException {
+        while (!isClosed) {
+            if (offer(item)) {
+                return true;
+            }
+            waitBriefly();
+        }
+        return false;
+    }
+
+    // Removes the oldest item, waiting for one if the queue is empty.
+    // Returns null once the queue is closed and drained. Consumer only.
+    public T take() throws InterruptedException {
+        T item;
+        while ((item = poll()) == null) {
+            if (isClosed) {
+                return null;
+            }
+            waitBriefly();
+        }
+        return item;
+    }
+
+    // Stops the queue. Waiting producers give up and the consumer gets the remaining items, then null.
+    public void close() {
+        isClosed = true;
+    }
+
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    private static void waitBriefly() throws InterruptedException {
+        LockSupport.parkNanos(WAIT_NANOS);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
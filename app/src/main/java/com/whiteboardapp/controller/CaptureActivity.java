@@ -3,7 +3,8 @@ package com.whiteboardapp.controller;
 
 import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.os.Bundle;
@@ -28,26 +29,31 @@ import androidx.core.content.ContextCompat;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import com.whiteboardapp.R;
+import com.whiteboardapp.common.MatPool;
+import com.whiteboardapp.common.MatScope;
+import com.whiteboardapp.core.CadenceScheduler;
 import com.whiteboardapp.core.CaptureService;
 import com.whiteboardapp.core.MatPrint;
+import com.whiteboardapp.core.ResolutionCalibrator;
 import com.whiteboardapp.core.pipeline.CornerDetector;
 import com.whiteboardapp.core.pipeline.PerspectiveTransformer;
+import com.whiteboardapp.core.pipeline.Segmentator;
 
-import org.opencv.android.Utils;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
+import org.opencv.core.Rect;
 
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class CaptureActivity extends AppCompatActivity {
 
     private final String TAG = "CaptureActivity"; // For logging
 
+    // Analysis statistics are logged once for this many analysed frames.
+    private static final int STATS_LOG_INTERVAL = 100;
+
     // View components
     private PreviewView previewView;
     private OverlayView overlayView;
@@ -60,9 +66,14 @@ public class CaptureActivity extends AppCompatActivity {
     // From domain
     private MatOfPoint2f cornerPoints;
     private CaptureService captureService;
-    private Mat currentModel;
+    private final PerspectiveTransformer transformer = new PerspectiveTransformer(); // Only used on analysis thread.
+    private final CadenceScheduler cadenceScheduler = new CadenceScheduler(); // Only used on analysis thread.
     private ImageView capturedImageView;
 
+    // Frames are analysed on this thread. The capture service is only touched from it.
+    // The resolution is calibrated on it too, before the camera is started.
+    private final ExecutorService analysisExecutor = Executors.newSingleThreadExecutor();
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -71,9 +82,22 @@ public class CaptureActivity extends AppCompatActivity {
         setViews();
         addBtnListeners();
         setupAndStartCamera();
+    }
 
-        currentModel = new Mat(100, 100, CvType.CV_8UC1);
-        currentModel.setTo(new Scalar(255));
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // End the capture session on the analysis thread, after the frame being analysed.
+        // Releases the segmentation model of the session.
+        analysisExecutor.execute(() -> {
+            if (captureService != null) {
+                captureService.shutdown();
+                captureService = null;
+            }
+            MatPool.getInstance().clear();
+        });
+        analysisExecutor.shutdown();
     }
 
     private void setViews() {
@@ -128,13 +152,28 @@ public class CaptureActivity extends AppCompatActivity {
                 isManualSelectionEnabled = false;
                 isCapturingStarted = false;
                 isStartOfManualSelectionHandled = false;
-                captureService = null; // Reset capture service.
             }
         });
     }
 
     // Attach behaviour to camera.
     private void setupAndStartCamera() {
+        // Pick the analysis resolution for this device. First launch times the pipeline, which takes a few
+        // seconds, so it is done in the background before the camera is started.
+        ResolutionCalibrator calibrator = new ResolutionCalibrator(getApplicationContext());
+        analysisExecutor.execute(() -> {
+            Size analysisResolution = calibrator.getOrCalibrateResolution();
+            ContextCompat.getMainExecutor(this).execute(() -> {
+                // The activity may have been closed while calibrating.
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                startCamera(analysisResolution);
+            });
+        });
+    }
+
+    private void startCamera(Size analysisResolution) {
         // Get the singleton CameraProvider
         ListenableFuture<ProcessCameraProvider> cameraProviderFuture = ProcessCameraProvider.getInstance(this);
 
@@ -142,7 +181,7 @@ public class CaptureActivity extends AppCompatActivity {
             // Verify that its initialization succeeded when the view is created
             try {
                 ProcessCameraProvider cameraProvider = cameraProviderFuture.get();
-                bindUseCases(cameraProvider);
+                bindUseCases(cameraProvider, analysisResolution);
             } catch (ExecutionException | InterruptedException e) {
                 // No errors need to be handled for this Future.
                 // This should never be reached.
@@ -153,14 +192,14 @@ public class CaptureActivity extends AppCompatActivity {
 
     }
 
-    private void bindUseCases(@NonNull ProcessCameraProvider cameraProvider) {
+    private void bindUseCases(@NonNull ProcessCameraProvider cameraProvider, Size analysisResolution) {
         // Select a camera.
         CameraSelector cameraSelector = new CameraSelector.Builder()
                 .requireLensFacing(CameraSelector.LENS_FACING_BACK)
                 .build();
 
         Preview previewUseCase = createPreviewUseCase();
-        ImageAnalysis analysisUseCase = createAnalysisUseCase();
+        ImageAnalysis analysisUseCase = createAnalysisUseCase(analysisResolution);
 
         // Create camera with objects bound to lifecycle.
         Camera camera = cameraProvider.bindToLifecycle(this, cameraSelector, previewUseCase, analysisUseCase);
@@ -181,9 +220,7 @@ public class CaptureActivity extends AppCompatActivity {
     private int rounds = 0;
 
     // Use case for analyzing image.
-    private ImageAnalysis createAnalysisUseCase() {
-        Size resolution = new Size(1280, 960);
-
+    private ImageAnalysis createAnalysisUseCase(Size resolution) {
         // Create new image analysis use case. Always get the latest frame from camera (non-blocking).
         ImageAnalysis imageAnalysisUseCase = new ImageAnalysis.Builder()
                 .setTargetResolution(resolution)
@@ -191,8 +228,6 @@ public class CaptureActivity extends AppCompatActivity {
                 .build();
 
         // Attach image analyzer. Will execute in its' own thread.
-        Executor analysisExecutor = Executors.newSingleThreadExecutor();
-
         imageAnalysisUseCase.setAnalyzer(analysisExecutor, imageProxy -> {
             long startTime = System.currentTimeMillis();
 
@@ -214,12 +249,6 @@ public class CaptureActivity extends AppCompatActivity {
 
     }
 
-    public static Bitmap rotateBitmap(Bitmap source, float rotationDegrees) {
-        Matrix matrix = new Matrix();
-        matrix.postRotate(rotationDegrees);
-        return Bitmap.createBitmap(source, 0, 0, source.getWidth(), source.getHeight(), matrix, true);
-    }
-
     @SuppressLint("UnsafeExperimentalUsageError")
     private void analyseImage(ImageProxy imageProxy) {
         if (imageProxy == null) {
@@ -234,28 +263,47 @@ public class CaptureActivity extends AppCompatActivity {
         }
 
         int rotationDegrees = imageProxy.getImageInfo().getRotationDegrees();
-        Bitmap bitmapRgb = MatConverter.imageYUV_420_888toBitmap(image);
+        long timestampMs = imageProxy.getImageInfo().getTimestamp() / 1_000_000;
+
+        // Mats used for the frame go back to the mat pool when it has been analysed.
+        try (MatScope scope = new MatScope()) {
+            if (isCapturingStarted) {
+                captureImage(image, rotationDegrees, timestampMs, scope);
+            } else {
+                detectCorners(image, rotationDegrees, scope);
+            }
+        }
+
+    }
+
+    private void detectCorners(Image image, int rotationDegrees, MatScope scope) {
+        // Capturing stopped, corners may be changed again.
+        if (transformer.isLocked()) {
+            transformer.unlock();
+            cadenceScheduler.reset();
 
-        // Rotate bitmap if necessary. The image analysis receives rotated images.
-        if (rotationDegrees != 0) {
-            bitmapRgb = rotateBitmap(bitmapRgb, rotationDegrees);
+            // Reset capture service. Ends the capture session and releases its segmentation model.
+            if (captureService != null) {
+                captureService.shutdown();
+                captureService = null;
+            }
+            MatPool.getInstance().clear();
         }
 
-        Mat imgRgb = new Mat();
-        Utils.bitmapToMat(bitmapRgb, imgRgb);
+        // Rotate image if necessary. The image analysis receives rotated images.
+        Mat imgBgr = MatConverter.imageYUV_420_888toBgr(image, scope);
+        imgBgr = MatConverter.rotate(imgBgr, rotationDegrees, scope);
 
-        Mat imgBgr = new Mat();
-        Imgproc.cvtColor(imgRgb, imgBgr, Imgproc.COLOR_RGB2BGR);
         CornerDetector cornerDetector = new CornerDetector();
 
         // Search for and display corners as long as user has not activated manual selection.
-        if (!isManualSelectionEnabled && !isCapturingStarted) {
+        if (!isManualSelectionEnabled) {
             cornerPoints = cornerDetector.findCorners(imgBgr);
             if (cornerPoints.height() == 4) {
                 overlayView.drawRectFromPoints(cornerPoints, imgBgr.width(), imgBgr.height());
             }
 
-        } else if (isManualSelectionEnabled && !isStartOfManualSelectionHandled && !isCapturingStarted) {
+        } else if (!isStartOfManualSelectionHandled) {
             // Draw a rectangle based on found corners or default if no corners found.
             // We have to repeat some of the find corners logic if user clicks on button and no corners have been
             // detected automatically yet.
@@ -268,35 +316,89 @@ public class CaptureActivity extends AppCompatActivity {
             }
             overlayView.isListenForManualCornerSelection = true;
             isStartOfManualSelectionHandled = true;
+        }
+    }
 
-        } else if (isCapturingStarted) {
-            // Capturing must have been started.
-
-            PerspectiveTransformer transformer = new PerspectiveTransformer();
+    private void captureImage(Image image, int rotationDegrees, long timestampMs, MatScope scope) {
+        // Corners do not change while capturing, so the mapping is computed once and reused.
+        // The transformer recomputes it by itself if the corner points change.
+        if (!transformer.isLocked()) {
+            transformer.lock();
+        }
 
-            // Perspective transform
-            Mat imgPerspective = transformer.getPerspective(imgBgr, cornerPoints);
+        // Only the region of the frame around the board is extracted from the camera planes.
+        Rect boardRoi = transformer.getSourceRoi(cornerPoints, rotationDegrees, image.getWidth(), image.getHeight());
 
-            // Run image processing pipeline if perspective obtained.
-            if (imgPerspective != null) {
-                if (captureService == null) {
-                    captureService = new CaptureService(imgPerspective.width(), imgPerspective.height(), this);
-                }
+        // Only the binarization needs the board at full resolution and it only needs luma, so the full
+        // resolution warp runs on the Y plane. Segmentation gets a color warp made directly at model input size.
+        // Rotation, perspective transform and crop are done in a single warp.
+        Mat imgGray = MatConverter.imageYUV_420_888toGray(image, boardRoi, scope);
 
-                currentModel = captureService.capture(imgPerspective);
+        // Skip the pipeline for most frames while nothing happens in front of the board.
+        if (!cadenceScheduler.shouldProcess(imgGray, timestampMs)) {
+            return;
+        }
+        if (cadenceScheduler.getProcessedFrameCount() % STATS_LOG_INTERVAL == 0) {
+            Log.d(TAG, "captureImage: Analysing at " + String.format("%.1f", cadenceScheduler.getProcessedRate()) + " fps"
+                    + (cadenceScheduler.isIdle() ? " (idle)" : "") + ", " + cadenceScheduler.getSkippedFrameCount() + " frames skipped, "
+                    + MatPool.getInstance().getLiveMatCount() + " live mats");
+            if (captureService != null) {
+                Log.d(TAG, "captureImage: Moving masks takes " + String.format("%.1f", captureService.getMaskPropagationTimeMs())
+                        + " ms per frame on the commit thread.");
+            }
+            if (captureService != null && captureService.getSegmentationFailureCount() > 0) {
+                Log.w(TAG, "captureImage: Segmentation failed on " + captureService.getSegmentationFailureCount() + " frames.");
+            }
+        }
 
-                if (isShowingCapturedImage) {
-                    Bitmap currentModelBitmap = MatConverter.matToBitmap(currentModel);
+        Mat imgPerspectiveGray = transformer.getPerspective(imgGray, cornerPoints, rotationDegrees);
 
-                    // Update view on UI thread.
-                    runOnUiThread(() -> {
-                        capturedImageView.setImageBitmap(currentModelBitmap);
-                    });
-                }
+        // Run image processing pipeline if perspective obtained.
+        if (imgPerspectiveGray != null) {
+            // The color region is downsampled close to model input size before it is converted.
+            Mat imgRgb = MatConverter.imageYUV_420_888toRgb(image, boardRoi,
+                    MatConverter.getDownsampledSize(boardRoi, Segmentator.MODEL_INPUT_SIZE), scope);
+            Mat imgSegmentationRgb = transformer.getPerspective(imgRgb, image.getWidth(), image.getHeight(), boardRoi,
+                    cornerPoints, rotationDegrees, Segmentator.MODEL_INPUT_SIZE);
 
+            if (captureService == null) {
+                captureService = new CaptureService(imgPerspectiveGray.width(), imgPerspectiveGray.height(), this);
+                showModel(captureService, imgPerspectiveGray.width(), imgPerspectiveGray.height());
+                captureService.start();
             }
+
+            // Segmentation, binarization and model update run on the capture service's own threads,
+            // so the model shown lags a few frames behind the camera. The service recycles the perspectives.
+            captureService.submit(imgPerspectiveGray, imgSegmentationRgb);
         }
+    }
+
+    // Shows the model of a new capture session and keeps it up to date as changes are committed.
+    // Only the changed regions are copied, converted and drawn into the shown bitmap, not the whole board.
+    private void showModel(CaptureService service, int width, int height) {
+        // The model starts out blank.
+        Bitmap modelBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        modelBitmap.eraseColor(Color.WHITE);
+        runOnUiThread(() -> capturedImageView.setImageBitmap(modelBitmap));
+
+        // Called on the commit thread. The bitmap is only drawn into on the UI thread.
+        service.addModelChangeListener((modelVersion, changedRegions) -> {
+            Bitmap[] regionBitmaps = new Bitmap[changedRegions.size()];
+            Mat imgRegion = new Mat();
+            for (int i = 0; i < regionBitmaps.length; i++) {
+                service.getLatestModel(imgRegion, changedRegions.get(i));
+                regionBitmaps[i] = MatConverter.matToBitmap(imgRegion);
+            }
+            imgRegion.release();
 
+            runOnUiThread(() -> {
+                Canvas canvas = new Canvas(modelBitmap);
+                for (int i = 0; i < regionBitmaps.length; i++) {
+                    canvas.drawBitmap(regionBitmaps[i], changedRegions.get(i).x, changedRegions.get(i).y, null);
+                }
+                capturedImageView.invalidate();
+            });
+        });
     }
 
 }
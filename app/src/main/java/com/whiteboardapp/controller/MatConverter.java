@@ -4,22 +4,34 @@ package com.whiteboardapp.controller;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.media.Image;
 
+import com.whiteboardapp.common.MatScope;
+
 import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 
 import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ReadOnlyBufferException;
 import java.util.ArrayList;
 
 public class MatConverter {
 
+    // One packer per thread, as the packer reuses its buffers between frames.
+    private static final ThreadLocal<Nv21Packer> NV21_PACKER = new ThreadLocal<Nv21Packer>() {
+        @Override
+        protected Nv21Packer initialValue() {
+            return new Nv21Packer();
+        }
+    };
+
     // Converts a mat to a bitmap
     public static Bitmap matToBitmap(Mat mat) {
         Bitmap bitmap = Bitmap.createBitmap(mat.cols(), mat.rows(), Bitmap.Config.ARGB_8888);
@@ -29,86 +41,188 @@ public class MatConverter {
 
     // Takes an Android image in YUV_420_888 format and converts it to a bitmap.
     public static Bitmap imageYUV_420_888toBitmap(Image image) {
-
-        if (image.getFormat() != ImageFormat.YUV_420_888) {
-            throw new IllegalArgumentException("The provided image was not in expected format. Expected: " + ImageFormat.YUV_420_888 + " Actual: " + image.getFormat());
-        }
+        checkYUV_420_888(image);
 
         byte[] nv21 = imageYUV_420_888toNV21(image);
-        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, image.getWidth(), image.getHeight(), null);
+        return nv21ToBitmap(nv21, image.getWidth(), image.getHeight());
+    }
+
+    // Converts an NV21 buffer to a bitmap by going through a JPEG encode/decode.
+    // NB: Slow and lossy. Kept as a reference for the direct conversion in nv21ToBgr.
+    public static Bitmap nv21ToBitmap(byte[] nv21, int width, int height) {
+        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 100, out);
+        yuvImage.compressToJpeg(new android.graphics.Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 100, out);
 
         byte[] imageBytes = out.toByteArray();
         return BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
     }
 
-    // Converts an image in YUV_420_888 format to NV21 format.
-    // As suggested by Alex Cohn cf. SO answer:
-    // https://stackoverflow.com/questions/52726002/camera2-captured-picture-conversion-from-yuv-420-888-to-nv21/52740776#52740776
-    private static byte[] imageYUV_420_888toNV21(Image image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int ySize = width * height;
-        int uvSize = width * height / 4;
-
-        byte[] nv21 = new byte[ySize + uvSize * 2];
-
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer(); // Y
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer(); // U
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer(); // V
-
-        int rowStride = image.getPlanes()[0].getRowStride();
-        assert (image.getPlanes()[0].getPixelStride() == 1);
-
-        int pos = 0;
-
-        if (rowStride == width) {
-            yBuffer.get(nv21, 0, ySize);
-            pos += ySize;
-        } else {
-            long yBufferPos = -rowStride;
-            for (; pos < ySize; pos += width) {
-                yBufferPos += rowStride;
-                yBuffer.position((int) yBufferPos);
-                yBuffer.get(nv21, pos, width);
-            }
+    // Takes an Android image in YUV_420_888 format and converts it directly to a BGR mat
+    // without the JPEG round-trip of imageYUV_420_888toBitmap.
+    public static Mat imageYUV_420_888toBgr(Image image) {
+        checkYUV_420_888(image);
+
+        byte[] nv21 = imageYUV_420_888toNV21(image);
+        return nv21ToBgr(nv21, image.getWidth(), image.getHeight());
+    }
+
+    // Same as above, but the mats are taken from the scope and given back when it is closed.
+    public static Mat imageYUV_420_888toBgr(Image image, MatScope scope) {
+        checkYUV_420_888(image);
+
+        byte[] nv21 = imageYUV_420_888toNV21(image);
+        Mat imgYuv = scope.obtain(image.getHeight() + image.getHeight() / 2, image.getWidth(), CvType.CV_8UC1);
+        Mat imgBgr = scope.obtain(image.getHeight(), image.getWidth(), CvType.CV_8UC3);
+        nv21ToColor(nv21, imgYuv, imgBgr, Imgproc.COLOR_YUV2BGR_NV21);
+        return imgBgr;
+    }
+
+    // Takes an Android image in YUV_420_888 format and returns a gray scale mat made from the Y plane only.
+    public static Mat imageYUV_420_888toGray(Image image) {
+        checkYUV_420_888(image);
+
+        Image.Plane yPlane = image.getPlanes()[0];
+        Mat imgYPlane = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC1, yPlane.getBuffer(), yPlane.getRowStride());
+        Mat imgGray = imgYPlane.clone();
+        imgYPlane.release();
+        return imgGray;
+    }
+
+    // Same as above, but only copies the given region of the Y plane. The mats are taken from the scope.
+    // Returns the region as a submat of a frame sized mat, so the offset of the region within the frame
+    // can be found with Mat.locateROI. Pixels outside the region are left uninitialized.
+    public static Mat imageYUV_420_888toGray(Image image, Rect roi, MatScope scope) {
+        checkYUV_420_888(image);
+
+        // Wrap the Y plane in place (respecting its row stride) and copy it out,
+        // as the plane buffer is only valid until the image is closed.
+        Image.Plane yPlane = image.getPlanes()[0];
+        Mat imgYPlane = scope.track(new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC1, yPlane.getBuffer(), yPlane.getRowStride()));
+        Mat imgFrame = scope.obtain(image.getHeight(), image.getWidth(), CvType.CV_8UC1);
+        Mat imgGray = scope.track(imgFrame.submat(roi));
+        scope.track(imgYPlane.submat(roi)).copyTo(imgGray);
+        return imgGray;
+    }
+
+    // Takes an Android image in YUV_420_888 format and converts it directly to an RGB mat.
+    public static Mat imageYUV_420_888toRgb(Image image) {
+        checkYUV_420_888(image);
+
+        byte[] nv21 = imageYUV_420_888toNV21(image);
+        return nv21ToRgb(nv21, image.getWidth(), image.getHeight());
+    }
+
+    // Same as above, but only packs the given region, which must be aligned to even coordinates, and converts it
+    // at the given size, which must be even. The luma and chroma planes are downsampled with area interpolation
+    // before the conversion, so only the pixels needed at that size are converted and fine detail does not alias.
+    // The mats are taken from the scope.
+    public static Mat imageYUV_420_888toRgb(Image image, Rect roi, Size size, MatScope scope) {
+        checkYUV_420_888(image);
+
+        byte[] nv21 = NV21_PACKER.get().pack(image, roi.x, roi.y, roi.width, roi.height);
+        Mat imgYuv = scope.obtain(roi.height + roi.height / 2, roi.width, CvType.CV_8UC1);
+        imgYuv.put(0, 0, nv21, 0, (int) imgYuv.total());
+
+        int width = (int) size.width;
+        int height = (int) size.height;
+        Mat imgSmallYuv = scope.obtain(height + height / 2, width, CvType.CV_8UC1);
+
+        // The Y plane, then the interleaved VU plane resized as a two channel image of half the size.
+        Imgproc.resize(scope.track(imgYuv.rowRange(0, roi.height)), scope.track(imgSmallYuv.rowRange(0, height)),
+                new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        Mat imgVu = scope.track(scope.track(imgYuv.rowRange(roi.height, imgYuv.rows())).reshape(2, roi.height / 2));
+        Mat imgSmallVu = scope.track(scope.track(imgSmallYuv.rowRange(height, imgSmallYuv.rows())).reshape(2, height / 2));
+        Imgproc.resize(imgVu, imgSmallVu, new Size(width / 2, height / 2), 0, 0, Imgproc.INTER_AREA);
+
+        Mat imgRgb = scope.obtain(height, width, CvType.CV_8UC3);
+        Imgproc.cvtColor(imgSmallYuv, imgRgb, Imgproc.COLOR_YUV2RGB_NV21);
+        return imgRgb;
+    }
+
+    // Size to convert a region at when it is only needed at the given size: the region downsampled by the largest
+    // whole factor that keeps both of its sides at least as long as the longer side of the given size, as the region
+    // may be rotated relative to it. Rounded down to even dimensions for imageYUV_420_888toRgb.
+    public static Size getDownsampledSize(Rect roi, Size size) {
+        double minSide = Math.max(size.width, size.height);
+        int factor = Math.max(1, (int) (Math.min(roi.width, roi.height) / minSide));
+        return new Size((roi.width / factor) & ~1, (roi.height / factor) & ~1);
+    }
+
+    // Converts an NV21 buffer to a BGR mat.
+    public static Mat nv21ToBgr(byte[] nv21, int width, int height) {
+        return nv21ToColor(nv21, width, height, Imgproc.COLOR_YUV2BGR_NV21);
+    }
+
+    // Converts an NV21 buffer to an RGB mat.
+    public static Mat nv21ToRgb(byte[] nv21, int width, int height) {
+        return nv21ToColor(nv21, width, height, Imgproc.COLOR_YUV2RGB_NV21);
+    }
+
+    // The buffer is wrapped in a single channel mat of height * 3/2 rows (Y plane followed by interleaved VU)
+    // which is the layout OpenCV expects for its NV21 conversions.
+    private static Mat nv21ToColor(byte[] nv21, int width, int height, int colorConversionCode) {
+        Mat imgYuv = new Mat(height + height / 2, width, CvType.CV_8UC1);
+        Mat imgColor = new Mat();
+        nv21ToColor(nv21, imgYuv, imgColor, colorConversionCode);
+        imgYuv.release();
+        return imgColor;
+    }
+
+    // Converts into the given mats. The yuv mat must have the NV21 layout described above.
+    private static void nv21ToColor(byte[] nv21, Mat imgYuv, Mat imgColor, int colorConversionCode) {
+        imgYuv.put(0, 0, nv21, 0, (int) imgYuv.total());
+        Imgproc.cvtColor(imgYuv, imgColor, colorConversionCode);
+    }
+
+    // Rotates a mat clockwise by a multiple of 90 degrees.
+    // Returns the given mat if no rotation is needed.
+    public static Mat rotate(Mat img, int rotationDegrees) {
+        if (rotationDegrees == 0) {
+            return img;
         }
 
-        rowStride = image.getPlanes()[2].getRowStride();
-        int pixelStride = image.getPlanes()[2].getPixelStride();
-
-        assert (rowStride == image.getPlanes()[1].getRowStride());
-        assert (pixelStride == image.getPlanes()[1].getPixelStride());
-
-        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
-            byte savePixel = vBuffer.get(1);
-            try {
-                vBuffer.put(1, (byte) ~savePixel);
-                if (uBuffer.get(0) == (byte) ~savePixel) {
-                    vBuffer.put(1, savePixel);
-                    vBuffer.position(0);
-                    uBuffer.position(0);
-                    vBuffer.get(nv21, ySize, 1);
-                    uBuffer.get(nv21, ySize + 1, uBuffer.remaining());
-
-                    return nv21;
-                }
-            } catch (ReadOnlyBufferException ex) {
-                ex.printStackTrace();
-            }
-
-            vBuffer.put(1, savePixel);
+        Mat imgRotated = new Mat();
+        Core.rotate(img, imgRotated, getRotateCode(rotationDegrees));
+        return imgRotated;
+    }
+
+    // Same as above, but the rotated mat is taken from the scope.
+    public static Mat rotate(Mat img, int rotationDegrees, MatScope scope) {
+        if (rotationDegrees == 0) {
+            return img;
         }
 
-        for (int row = 0; row < height / 2; row++) {
-            for (int col = 0; col < width / 2; col++) {
-                int vuPos = col * pixelStride + row * rowStride;
-                nv21[pos++] = vBuffer.get(vuPos);
-                nv21[pos++] = uBuffer.get(vuPos);
-            }
+        int rotateCode = getRotateCode(rotationDegrees);
+        Mat imgRotated = rotateCode == Core.ROTATE_180
+                ? scope.obtain(img.rows(), img.cols(), img.type())
+                : scope.obtain(img.cols(), img.rows(), img.type());
+        Core.rotate(img, imgRotated, rotateCode);
+        return imgRotated;
+    }
+
+    private static int getRotateCode(int rotationDegrees) {
+        switch (rotationDegrees) {
+            case 90:
+                return Core.ROTATE_90_CLOCKWISE;
+            case 180:
+                return Core.ROTATE_180;
+            case 270:
+                return Core.ROTATE_90_COUNTERCLOCKWISE;
+            default:
+                throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees. Actual: " + rotationDegrees);
         }
+    }
 
-        return nv21;
+    private static void checkYUV_420_888(Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("The provided image was not in expected format. Expected: " + ImageFormat.YUV_420_888 + " Actual: " + image.getFormat());
+        }
+    }
+
+    // Converts an image in YUV_420_888 format to NV21 format.
+    // NB: The returned buffer is pooled and only valid until the next conversion on the same thread.
+    private static byte[] imageYUV_420_888toNV21(Image image) {
+        return NV21_PACKER.get().pack(image);
     }
 }
@@ -0,0 +1,149 @@
+package com.whiteboardapp.controller;
+
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Packs images in YUV_420_888 format into NV21 buffers.
+// Buffers are pooled by frame size and reused for every frame, so the returned buffer is only valid
+// until the next call to pack. All plane copies are done row by row with bulk ByteBuffer reads.
+// NB: Not thread safe. Use one packer per analysis thread.
+public class Nv21Packer {
+
+    // A camera rarely changes frame size, so only a couple of sizes are kept around.
+    private static final int MAX_POOLED_SIZES = 2;
+
+    private final Map<Long, byte[]> bufferPool = new HashMap<>();
+
+    // Scratch rows for chroma planes that are not already interleaved.
+    private byte[] uRow = new byte[0];
+    private byte[] vRow = new byte[0];
+
+    // Converts an image in YUV_420_888 format to NV21 format.
+    // Based on the approach suggested by Alex Cohn cf. SO answer:
+    // https://stackoverflow.com/questions/52726002/camera2-captured-picture-conversion-from-yuv-420-888-to-nv21/52740776#52740776
+    public byte[] pack(Image image) {
+        return pack(image, 0, 0, image.getWidth(), image.getHeight());
+    }
+
+    // Converts a region of an image in YUV_420_888 format to NV21 format.
+    // The region must start at even coordinates and have even dimensions so it lines up with the chroma samples.
+    public byte[] pack(Image image, int x, int y, int width, int height) {
+        Image.Plane yPlane = image.getPlanes()[0];
+        Image.Plane uPlane = image.getPlanes()[1];
+        Image.Plane vPlane = image.getPlanes()[2];
+        assert (yPlane.getPixelStride() == 1);
+        assert (uPlane.getRowStride() == vPlane.getRowStride());
+        assert (uPlane.getPixelStride() == vPlane.getPixelStride());
+
+        return pack(yPlane.getBuffer(), yPlane.getRowStride(),
+                uPlane.getBuffer(), vPlane.getBuffer(), vPlane.getRowStride(), vPlane.getPixelStride(),
+                x, y, width, height);
+    }
+
+    // Packs raw YUV 4:2:0 planes with the given strides into NV21 format.
+    public byte[] pack(ByteBuffer yBuffer, int yRowStride, ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride, int width, int height) {
+        return pack(yBuffer, yRowStride, uBuffer, vBuffer, uvRowStride, uvPixelStride, 0, 0, width, height);
+    }
+
+    // Packs a region of raw YUV 4:2:0 planes with the given strides into NV21 format.
+    public byte[] pack(ByteBuffer yBuffer, int yRowStride, ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride, int x, int y, int width, int height) {
+        assert (x % 2 == 0 && y % 2 == 0 && width % 2 == 0 && height % 2 == 0);
+
+        byte[] nv21 = obtainBuffer(width, height);
+        copyLumaPlane(yBuffer, yRowStride, x, y, width, height, nv21);
+        copyChromaPlanes(uBuffer, vBuffer, uvRowStride, uvPixelStride, x / 2, y / 2, width, height, nv21, width * height);
+        return nv21;
+    }
+
+    // Returns the pooled buffer for the given frame size. Allocates only when a new frame size is seen.
+    private byte[] obtainBuffer(int width, int height) {
+        long key = ((long) width << 32) | height;
+        byte[] buffer = bufferPool.get(key);
+        if (buffer == null) {
+            if (bufferPool.size() >= MAX_POOLED_SIZES) {
+                bufferPool.clear();
+            }
+            buffer = new byte[width * height + (width * height / 4) * 2];
+            bufferPool.put(key, buffer);
+        }
+        return buffer;
+    }
+
+    private static void copyLumaPlane(ByteBuffer yBuffer, int rowStride, int x, int y, int width, int height, byte[] nv21) {
+        if (rowStride == width && x == 0) {
+            yBuffer.position(y * rowStride);
+            yBuffer.get(nv21, 0, width * height);
+            return;
+        }
+
+        for (int row = 0; row < height; row++) {
+            yBuffer.position((y + row) * rowStride + x);
+            yBuffer.get(nv21, row * width, width);
+        }
+    }
+
+    // Writes the chroma planes as interleaved VU rows starting at offset.
+    // The chroma region starts at (chromaX, chromaY) in chroma sample coordinates.
+    private void copyChromaPlanes(ByteBuffer uBuffer, ByteBuffer vBuffer, int rowStride, int pixelStride, int chromaX, int chromaY, int width, int height, byte[] nv21, int offset) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int pos = offset;
+
+        // V and U planes are views into the same VUVU... memory, i.e. already NV21.
+        // Each row can then be copied straight into the output, only the last U value is missing from the V plane.
+        if (pixelStride == 2 && isInterleavedVu(uBuffer, vBuffer)) {
+            int vuRowLength = chromaWidth * 2 - 1;
+            for (int row = 0; row < chromaHeight; row++) {
+                int rowStart = (chromaY + row) * rowStride + chromaX * pixelStride;
+                vBuffer.position(rowStart);
+                vBuffer.get(nv21, pos, vuRowLength);
+                nv21[pos + vuRowLength] = uBuffer.get(rowStart + vuRowLength - 1);
+                pos += chromaWidth * 2;
+            }
+            return;
+        }
+
+        // Generic case: read each plane row in bulk and interleave the samples.
+        int rowLength = (chromaWidth - 1) * pixelStride + 1;
+        if (uRow.length < rowLength) {
+            uRow = new byte[rowLength];
+            vRow = new byte[rowLength];
+        }
+
+        for (int row = 0; row < chromaHeight; row++) {
+            int rowStart = (chromaY + row) * rowStride + chromaX * pixelStride;
+            uBuffer.position(rowStart);
+            uBuffer.get(uRow, 0, rowLength);
+            vBuffer.position(rowStart);
+            vBuffer.get(vRow, 0, rowLength);
+
+            for (int col = 0; col < chromaWidth; col++) {
+                nv21[pos++] = vRow[col * pixelStride];
+                nv21[pos++] = uRow[col * pixelStride];
+            }
+        }
+    }
+
+    // Checks whether the V plane is directly followed by the U plane in memory
+    // by changing a V plane value and checking if the change shows up in the U plane.
+    private static boolean isInterleavedVu(ByteBuffer uBuffer, ByteBuffer vBuffer) {
+        if (uBuffer.get(0) != vBuffer.get(1)) {
+            return false;
+        }
+
+        byte savePixel = vBuffer.get(1);
+        try {
+            vBuffer.put(1, (byte) ~savePixel);
+            boolean isInterleaved = uBuffer.get(0) == (byte) ~savePixel;
+            vBuffer.put(1, savePixel);
+            return isInterleaved;
+        } catch (ReadOnlyBufferException ex) {
+            return false;
+        }
+    }
+}
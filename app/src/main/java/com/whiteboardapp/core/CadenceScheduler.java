@@ -0,0 +1,128 @@
+package com.whiteboardapp.core;
+
+
+import com.whiteboardapp.core.pipeline.StaticSceneGate;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+// Decides which frames to run through the pipeline, based on how much is happening in front of the camera.
+// While the scene changes (presenter moving, new ink) every frame is analysed. When nothing has changed for
+// a while the scheduler drops to a low rate to save battery and keep the device cool during long sessions.
+// Activity is measured on a tiny downsampled luma thumbnail, which is cheap compared to the pipeline.
+// The thumbnail has the size the static scene gate uses, so both notice changes of about the same size.
+public class CadenceScheduler {
+
+    // Luma difference for a thumbnail cell to count as changed, and how many cells must change.
+    // 8 cells of the 64x48 thumbnail cover about as much of the board as 2 cells of a 32x24 one.
+    private static final int CELL_DIFF_THRESHOLD = 10;
+    private static final int MIN_CHANGED_CELLS = 8;
+
+    private static final long DEFAULT_IDLE_DELAY_MS = 3000;
+    private static final long DEFAULT_IDLE_INTERVAL_MS = 1000; // 1 fps
+
+    // Smoothing factor for the measured processing rate.
+    private static final double RATE_SMOOTHING = 0.2;
+
+    private final long idleDelayMs;
+    private final long idleIntervalMs;
+
+    private final Mat thumbnail = new Mat();
+    private final Mat thumbnailDiff = new Mat();
+    private Mat lastProcessedThumbnail;
+
+    private long lastActivityTime = 0;
+    private long lastProcessedTime = 0;
+    private boolean isIdle = false;
+
+    private double processedRate = 0;
+    private long processedFrameCount = 0;
+    private long skippedFrameCount = 0;
+
+    public CadenceScheduler() {
+        this(DEFAULT_IDLE_DELAY_MS, DEFAULT_IDLE_INTERVAL_MS);
+    }
+
+    // idleDelayMs: time without activity before dropping to the idle rate.
+    // idleIntervalMs: time between analysed frames while idle.
+    public CadenceScheduler(long idleDelayMs, long idleIntervalMs) {
+        this.idleDelayMs = idleDelayMs;
+        this.idleIntervalMs = idleIntervalMs;
+    }
+
+    // Returns whether the frame should be analysed. Must be called for every frame, also the skipped ones.
+    // The first frame is always analysed.
+    // The frame is given as its gray scale (Y plane) image and the time it was captured.
+    public boolean shouldProcess(Mat imgGray, long timestampMs) {
+        Imgproc.resize(imgGray, thumbnail, StaticSceneGate.THUMBNAIL_SIZE, 0, 0, Imgproc.INTER_AREA);
+
+        if (hasChangedSinceLastProcessed()) {
+            lastActivityTime = timestampMs;
+        }
+
+        isIdle = timestampMs - lastActivityTime > idleDelayMs;
+        boolean shouldProcess = !isIdle || timestampMs - lastProcessedTime >= idleIntervalMs;
+
+        if (shouldProcess) {
+            onProcessed(timestampMs);
+        } else {
+            skippedFrameCount++;
+        }
+        return shouldProcess;
+    }
+
+    // Starts over at full rate, e.g. when a new capture session starts.
+    public void reset() {
+        lastProcessedThumbnail = null;
+        lastActivityTime = 0;
+        lastProcessedTime = 0;
+        isIdle = false;
+        processedRate = 0;
+        processedFrameCount = 0;
+        skippedFrameCount = 0;
+    }
+
+    public boolean isIdle() {
+        return isIdle;
+    }
+
+    // Current rate of analysed frames in frames per second.
+    public double getProcessedRate() {
+        return processedRate;
+    }
+
+    public long getProcessedFrameCount() {
+        return processedFrameCount;
+    }
+
+    public long getSkippedFrameCount() {
+        return skippedFrameCount;
+    }
+
+    // Compares with the last analysed frame rather than the previous frame, so slow changes
+    // (e.g. ink written while idle) add up until they are noticed.
+    private boolean hasChangedSinceLastProcessed() {
+        if (lastProcessedThumbnail == null) {
+            return true;
+        }
+
+        Core.absdiff(thumbnail, lastProcessedThumbnail, thumbnailDiff);
+        Imgproc.threshold(thumbnailDiff, thumbnailDiff, CELL_DIFF_THRESHOLD, 255, Imgproc.THRESH_BINARY);
+        return Core.countNonZero(thumbnailDiff) >= MIN_CHANGED_CELLS;
+    }
+
+    private void onProcessed(long timestampMs) {
+        if (lastProcessedThumbnail != null && timestampMs > lastProcessedTime) {
+            double rate = 1000.0 / (timestampMs - lastProcessedTime);
+            processedRate = processedFrameCount <= 1 ? rate : processedRate + RATE_SMOOTHING * (rate - processedRate);
+        }
+
+        if (lastProcessedThumbnail == null) {
+            lastProcessedThumbnail = new Mat();
+        }
+        thumbnail.copyTo(lastProcessedThumbnail);
+        lastProcessedTime = timestampMs;
+        processedFrameCount++;
+    }
+}
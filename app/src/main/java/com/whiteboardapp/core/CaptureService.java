@@ -2,126 +2,461 @@ package com.whiteboardapp.core;
 
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.util.Log;
 
-import com.whiteboardapp.controller.MatConverter;
 import com.whiteboardapp.core.pipeline.Binarization;
-import com.whiteboardapp.core.pipeline.ChangeDetector;
+import com.whiteboardapp.core.pipeline.ChangePersistence;
+import com.whiteboardapp.core.pipeline.ChangeRegionExtractor;
+import com.whiteboardapp.core.pipeline.FrameContext;
+import com.whiteboardapp.core.pipeline.FrameStage;
+import com.whiteboardapp.core.pipeline.ModelCommitter;
+import com.whiteboardapp.core.pipeline.SegmentationLane;
+import com.whiteboardapp.core.pipeline.SegmentationModel;
 import com.whiteboardapp.core.pipeline.Segmentator;
+import com.whiteboardapp.core.pipeline.SharpnessGate;
+import com.whiteboardapp.core.pipeline.StaticSceneGate;
 
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Scalar;
+import org.opencv.core.Rect;
 import org.opencv.imgproc.Imgproc;
 
-import com.whiteboardapp.common.AppUtils;
+import com.whiteboardapp.common.BinaryImage;
+import com.whiteboardapp.common.MatPool;
+import com.whiteboardapp.common.PixelBuffer;
+import com.whiteboardapp.common.SpscQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static android.content.ContentValues.TAG;
 
 public class CaptureService {
-    private final Context appContext;
-    private final Mat currentModel;
-    private final ChangeDetector changeDetector;
 
+    // Frames waiting between two stages. Small so a slow stage makes the camera drop frames instead of adding latency.
+    private static final int QUEUE_CAPACITY = 2;
+
+    // Frames that can be in the pipeline at once, one frame context each.
+    // Enough to keep the stage threads busy. When all are in use, submit waits for one to be committed.
+    private static final int FRAME_CONTEXT_COUNT = 4;
+
+    // Skipped frames are logged once for this many of them, as there may be one every camera frame.
+    private static final int SKIPPED_FRAMES_LOG_INTERVAL = 100;
+
+    // Stage times are logged as averages once for this many runs of a stage, as every stage runs every frame.
+    private static final int STAGE_TIMES_LOG_INTERVAL = 100;
+
+    // The model is kept bit-packed and only unpacked to an 8-bit image when it is read.
+    private final BinaryImage currentModel; // Only touched by the commit stages.
+    private final BinaryImage publishedModel; // Copy of the model after the last commit, for other threads to read. Guarded by itself.
+    private final PixelBuffer modelPixels; // Unpacked model handed out to callers. Guarded by publishedModel.
+    private volatile long modelVersion = 0; // Counts the commits that changed the model. Written under publishedModel.
+    private volatile long committedSequenceNumber = -1;
+    private final List<ModelChangeListener> modelChangeListeners = new CopyOnWriteArrayList<>();
+    private final StaticSceneGate staticSceneGate;
+    private final SharpnessGate sharpnessGate;
+    private volatile boolean areGatesBypassed = false;
+
+    // Stages run on each frame, in order. Segmentation and binarization do not depend on each other,
+    // the commit stages need both of their results.
+    // Segmentation stages are only run by capture, the stage threads get their masks from the segmentation lane.
+    private final List<FrameStage> segmentationStages;
+    private final List<FrameStage> binarizationStages;
+    private final List<FrameStage> commitStages;
+
+    // Loaded once for the session, released by shutdown if the service loaded it itself.
+    private final SegmentationModel segmentationModel;
+    private final boolean isSegmentationModelOwned;
+
+    // Staged pipeline. Binarization and commit run on every frame, in frame order. Segmentation runs on its own
+    // lane on the newest frame whenever it is done with the previous one, and the commit stage takes the latest
+    // mask it has made. Committed frame contexts are recycled to submit:
+    //   submit -> binarizationQueue -> binarization -> binarizedQueue -> commit -> freeContexts -> submit
+    //          \-> segmentation lane (latest frame) ----- latest mask ----/
+    private final SegmentationLane segmentationLane;
+    private final List<FrameStage> maskStages;
+    private final SpscQueue<FrameContext> freeContexts = new SpscQueue<>(FRAME_CONTEXT_COUNT);
+    private final SpscQueue<FrameContext> binarizationQueue = new SpscQueue<>(QUEUE_CAPACITY);
+    private final SpscQueue<FrameContext> binarizedQueue = new SpscQueue<>(QUEUE_CAPACITY);
+    private final List<Thread> stageThreads = new ArrayList<>();
+
+    // Total time in ms and number of runs of each stage since they were last logged. Filled in the constructor and
+    // only read afterwards. Each stage only runs on one thread, which is the only one writing its entry.
+    private final Map<FrameStage, long[]> stageTimes = new HashMap<>();
+    private long nextSequenceNumber = 0;
+
+    // Loads the segmentation model for the session. Call shutdown to release it.
     public CaptureService(int defaultWidth, int defaultHeight, Context appContext) {
-        this.appContext = appContext;
-        currentModel = new Mat(defaultHeight, defaultWidth, CvType.CV_8UC1);
-        currentModel.setTo(new Scalar(255));
-        changeDetector = new ChangeDetector();
+        this(defaultWidth, defaultHeight, new SegmentationModel(appContext), true);
+    }
+
+    // Uses a segmentation model loaded by the caller, e.g. to share it between services. The caller releases it.
+    public CaptureService(int defaultWidth, int defaultHeight, SegmentationModel segmentationModel) {
+        this(defaultWidth, defaultHeight, segmentationModel, false);
+    }
+
+    private CaptureService(int defaultWidth, int defaultHeight, SegmentationModel segmentationModel, boolean isSegmentationModelOwned) {
+        this.segmentationModel = segmentationModel;
+        this.isSegmentationModelOwned = isSegmentationModelOwned;
+        currentModel = new BinaryImage(defaultHeight, defaultWidth);
+        currentModel.fill(true);
+        publishedModel = new BinaryImage(defaultHeight, defaultWidth);
+        currentModel.copyTo(publishedModel);
+        modelPixels = new PixelBuffer(defaultHeight, defaultWidth);
+        ChangePersistence changePersistence = new ChangePersistence(defaultHeight, defaultWidth);
+        staticSceneGate = new StaticSceneGate(changePersistence.getCommitThreshold());
+        sharpnessGate = new SharpnessGate();
+
+        Segmentator segmentator = new Segmentator(segmentationModel);
+        segmentationStages = Collections.singletonList(segmentator);
+        segmentationLane = new SegmentationLane(segmentator, defaultWidth, defaultHeight);
+        maskStages = Collections.singletonList(segmentationLane);
+        binarizationStages = Collections.singletonList(new Binarization());
+        commitStages = Arrays.asList(new ModelCommitter(currentModel, changePersistence), new ChangeRegionExtractor());
+
+        for (int i = 0; i < FRAME_CONTEXT_COUNT; i++) {
+            freeContexts.offer(new FrameContext(defaultWidth, defaultHeight));
+        }
+        for (List<FrameStage> stages : Arrays.asList(segmentationStages, maskStages, binarizationStages, commitStages)) {
+            for (FrameStage stage : stages) {
+                stageTimes.put(stage, new long[2]);
+            }
+        }
     }
 
     // Runs image through the image processing pipeline
     public Mat capture(Mat imgBgr) {
+        Mat imgGray = new Mat();
+        Imgproc.cvtColor(imgBgr, imgGray, Imgproc.COLOR_BGR2GRAY);
+
+        Mat imgSegmentationRgb = new Mat();
+        Imgproc.resize(imgBgr, imgSegmentationRgb, Segmentator.MODEL_INPUT_SIZE, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.cvtColor(imgSegmentationRgb, imgSegmentationRgb, Imgproc.COLOR_BGR2RGB);
 
-        // Segmentation
-        Log.d(TAG, "capture: Segmentation started.");
-        Mat matPerspectiveRgb = new Mat();
-        Imgproc.cvtColor(imgBgr, matPerspectiveRgb, Imgproc.COLOR_BGR2RGB);
-        Segmentator segmentator = new Segmentator(appContext);
-        Bitmap bitmapRgb = MatConverter.matToBitmap(matPerspectiveRgb);
-        Mat imgSegMap = segmentator.segmentate(bitmapRgb);
-        Log.d(TAG, "capture: Segmentation done.");
-
-        // Binarize a gray scale version of the image.
-        Mat imgWarpGray = new Mat();
-        Imgproc.cvtColor(imgBgr, imgWarpGray, Imgproc.COLOR_BGR2GRAY);
-        Mat imgBinarized = Binarization.binarize(imgWarpGray);
-
-        // Remove segments before change detection.
-        Mat currentModelCopy = removeSegmentArea(imgBinarized, currentModel, imgSegMap, imgBgr);
-
-        // Change detection
-        Mat imgPersistentChanges = changeDetector.detectChanges(imgBinarized, currentModelCopy);
-
-        // Update current model with persistent changes.
-        updateModel(imgBinarized, imgPersistentChanges);
-        return currentModel;
-
-    }
-
-    // Removes segment area from image
-    private Mat removeSegmentArea(Mat binarizedImg, Mat currentModel, Mat imgSegMap, Mat imgPerspective) {
-        Mat currentModelCopy = new Mat();
-        currentModel.copyTo(currentModelCopy);
-
-        long startTime = System.currentTimeMillis();
-
-//        for (int i = 0; i < binarizedImg.rows(); i++) {
-//            for (int j = 0; j < binarizedImg.cols(); j++) {
-//                if (imgSegMap.get(i, j)[0] == 255) {
-//                    binarizedImg.put(i, j, 255);
-//                    currentModelCopy.put(i, j, 255);
-////                    imgPerspective.put(i, j, 255, 0, 0);
-//                }
-//            }
-//        }
-
-        byte[] bufferBinarized = AppUtils.getBuffer(binarizedImg);
-        byte[] bufferSegmap = AppUtils.getBuffer(imgSegMap);
-        byte[] bufferModel = AppUtils.getBuffer(currentModelCopy);
-
-        for (int i = 0; i < bufferBinarized.length; i++) {
-            if (bufferSegmap[i] == -1) {
-                bufferBinarized[i] = -1;
-                bufferModel[i] = -1;
+        return capture(imgGray, imgSegmentationRgb);
+    }
+
+    // Runs image through the image processing pipeline on the calling thread and returns the updated model.
+    // Takes the board in gray scale at full resolution and a (small) RGB version of the board for segmentation.
+    // The returned mat is reused by the next call.
+    // NB: Do not mix with submit.
+    public Mat capture(Mat imgGray, Mat imgSegmentationRgb) {
+        if (!stageThreads.isEmpty()) {
+            throw new IllegalStateException("Capture pipeline is started, frames must be given with submit");
+        }
+
+        if (!isSkippable(imgGray)) {
+            FrameContext context = freeContexts.poll();
+            if (context == null) {
+                throw new IllegalStateException("No free frame context for capture");
             }
+            context.setInput(nextSequenceNumber++, imgGray, imgSegmentationRgb);
+            runStages(segmentationStages, context);
+            runStages(binarizationStages, context);
+            // Segmented on this very frame, so the mask is always fresh.
+            commit(context, true);
+            publish(context);
+            freeContexts.offer(context);
         }
 
-        binarizedImg.put(0, 0, bufferBinarized);
-        currentModelCopy.put(0, 0, bufferModel);
+        synchronized (publishedModel) {
+            currentModel.unpack(modelPixels.getPixels());
+            return modelPixels.getMat();
+        }
+    }
 
-        long endTime = System.currentTimeMillis();
-        System.out.println("Remove segment loop took: " + (endTime - startTime) + " milliseconds");
-        return currentModelCopy;
+    // Starts the stage threads. Frames are then given with submit.
+    public void start() {
+        if (!stageThreads.isEmpty()) {
+            throw new IllegalStateException("Capture pipeline is already started");
+        }
+
+        stageThreads.add(new Thread(() -> runStageLoop(binarizationQueue, binarizationStages, binarizedQueue), "CaptureBinarization"));
+        stageThreads.add(new Thread(this::runCommitLoop, "CaptureCommit"));
+        for (Thread thread : stageThreads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        segmentationLane.start();
     }
 
-    private void updateModel(Mat imgBinarized, Mat imgPersistentChanges) {
+    // Hands the frame to the stage threads. The resulting model can be read with getLatestModel.
+    // Takes over the given mats and recycles them into the MatPool once the frame is done.
+    // Waits while the pipeline is full, so the camera drops frames rather than frames piling up.
+    // Never waits for segmentation.
+    // Must always be called from the same thread.
+    public void submit(Mat imgGray, Mat imgSegmentationRgb) {
+        if (stageThreads.isEmpty()) {
+            throw new IllegalStateException("Capture pipeline is not started");
+        }
 
-        long startTime = System.currentTimeMillis();
+        if (isSkippable(imgGray)) {
+            recycleInput(imgGray, imgSegmentationRgb);
+            return;
+        }
 
-        byte[] bufferModel = AppUtils.getBuffer(currentModel);
-        byte[] bufferChanges = AppUtils.getBuffer(imgPersistentChanges);
-        byte[] bufferBinarized = AppUtils.getBuffer(imgBinarized);
+        // The mats are recycled here whenever the frame does not make it into the pipeline, i.e. after shutdown.
+        try {
+            FrameContext context = freeContexts.take();
+            if (context == null) {
+                recycleInput(imgGray, imgSegmentationRgb);
+                return;
+            }
+            context.setInput(nextSequenceNumber++, imgGray, imgSegmentationRgb);
+            segmentationLane.submit(context.getSequenceNumber(), imgSegmentationRgb);
+            if (!binarizationQueue.put(context)) {
+                recycleInput(imgGray, imgSegmentationRgb);
+            }
+        } catch (InterruptedException e) {
+            recycleInput(imgGray, imgSegmentationRgb);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stops the stage threads and releases the segmentation model. Frames still in the pipeline are dropped and
+    // their mats recycled. Waits for the stage threads to finish the frame they are on, so the model is not released
+    // during inference. Must be called from the thread calling submit.
+    public void shutdown() {
+        freeContexts.close();
+        binarizationQueue.close();
+        binarizedQueue.close();
+        segmentationLane.shutdown();
+        for (Thread thread : stageThreads) {
+            thread.interrupt();
+        }
 
-        for (int i = 0; i < bufferModel.length; i++) {
-            if (bufferChanges[i] == -1) {
-                bufferModel[i] = bufferBinarized[i];
+        boolean isInterrupted = false;
+        for (Thread thread : stageThreads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
             }
         }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The stage threads are stopped, so the queues can be drained from here.
+        recycleQueuedInput(binarizationQueue);
+        recycleQueuedInput(binarizedQueue);
+
+        if (isSegmentationModelOwned) {
+            segmentationModel.close();
+        }
+    }
 
-//        for (int i = 0; i < currentModel.rows(); i++) {
-//            for (int j = 0; j < currentModel.cols(); j++) {
-//                if (imgPersistentChanges.get(i, j)[0] == 255) {
-//                    currentModel.put(i, j, imgBinarized.get(i, j)[0]);
-//                }
-//            }
-//        }
+    // Copies the model as of the last frame committed by the stage threads and returns its version.
+    // Safe to call from any thread.
+    public long getLatestModel(Mat dst) {
+        synchronized (publishedModel) {
+            publishedModel.unpack(modelPixels.getPixels());
+            modelPixels.getMat().copyTo(dst);
+            return modelVersion;
+        }
+    }
 
-        currentModel.put(0, 0, bufferModel);
+    // Copies a region of the model as of the last frame committed by the stage threads and returns its version.
+    // For updating only the regions given to a ModelChangeListener. Safe to call from any thread.
+    // Only the words covering the region are unpacked.
+    public long getLatestModel(Mat dst, Rect region) {
+        int firstWord = region.x / 64;
+        int endWord = (region.x + region.width + 63) / 64;
+        synchronized (publishedModel) {
+            publishedModel.unpack(modelPixels.getPixels(), region.y, region.y + region.height, firstWord, endWord);
+            Mat imgRegion = modelPixels.getMat().submat(region);
+            imgRegion.copyTo(dst);
+            imgRegion.release();
+            return modelVersion;
+        }
+    }
 
-        long endTime = System.currentTimeMillis();
-        System.out.println("Update model loop took: " + (endTime - startTime) + " milliseconds");
+    // Version of the latest model, increased every time changes are committed. Safe to call from any thread.
+    public long getModelVersion() {
+        return modelVersion;
     }
 
+    // Listeners are called on the commit thread with the regions that changed, see ModelChangeListener.
+    public void addModelChangeListener(ModelChangeListener listener) {
+        modelChangeListeners.add(listener);
+    }
+
+    public void removeModelChangeListener(ModelChangeListener listener) {
+        modelChangeListeners.remove(listener);
+    }
+
+    // Sequence number of the last frame committed to the model, -1 if none.
+    public long getCommittedSequenceNumber() {
+        return committedSequenceNumber;
+    }
+
+    // Runs every frame through the pipeline, skipping neither unchanged nor blurred frames.
+    // For timing the pipeline on the same frame over and over, which the gates would otherwise skip.
+    public void setGatesBypassed(boolean areGatesBypassed) {
+        this.areGatesBypassed = areGatesBypassed;
+    }
+
+    // Fraction of frames where the pipeline was skipped because the board was unchanged.
+    public double getStaticSceneHitRate() {
+        return staticSceneGate.getHitRate();
+    }
+
+    // Estimated pipeline time saved by skipping unchanged frames.
+    public long getStaticSceneTimeSavedMs() {
+        return staticSceneGate.getTimeSavedMs();
+    }
+
+    // Number of frames the segmentation lane failed on. While it keeps failing the whole board ends up masked,
+    // so nothing is committed.
+    public long getSegmentationFailureCount() {
+        return segmentationLane.getFailureCount();
+    }
+
+    // Average time in ms the commit thread spends moving an older segmentation mask to a frame along the flow.
+    public double getMaskPropagationTimeMs() {
+        return segmentationLane.getAveragePropagationTimeMs();
+    }
+
+    // Number of frames rejected for motion blur.
+    public long getBlurRejectionCount() {
+        return sharpnessGate.getRejectedCount();
+    }
+
+    // Checks if the pipeline can be skipped for the frame.
+    private boolean isSkippable(Mat imgGray) {
+        if (areGatesBypassed) {
+            return false;
+        }
+
+        // Blurred frames would only add smeared strokes for the change detector to reject.
+        // Checked first so a blurred frame never becomes the reference of the static scene gate.
+        if (sharpnessGate.isBlurred(imgGray)) {
+            if (sharpnessGate.getRejectedCount() % SKIPPED_FRAMES_LOG_INTERVAL == 0) {
+                Log.d(TAG, "capture: Blurred frames rejected. " + sharpnessGate.getRejectedCount() + " of "
+                        + sharpnessGate.getFrameCount() + " frames rejected so far.");
+            }
+            return true;
+        }
+
+        // Nothing to update if the board looks the same as last time.
+        if (staticSceneGate.isStatic(imgGray, nextSequenceNumber)) {
+            if (staticSceneGate.getHitCount() % SKIPPED_FRAMES_LOG_INTERVAL == 0) {
+                Log.d(TAG, "capture: Static scene, pipeline skipped. Hit rate " + staticSceneGate.getHitRate()
+                        + ", saved " + staticSceneGate.getTimeSavedMs() + " ms so far.");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void recycleInput(Mat imgGray, Mat imgSegmentationRgb) {
+        MatPool.getInstance().recycle(imgGray);
+        MatPool.getInstance().recycle(imgSegmentationRgb);
+    }
+
+    // Recycles the mats of the frames left in a queue of the stopped pipeline.
+    private void recycleQueuedInput(SpscQueue<FrameContext> queue) {
+        FrameContext context;
+        while ((context = queue.poll()) != null) {
+            recycleInput(context.getGray(), context.getSegmentationRgb());
+        }
+    }
+
+    // Runs the stages on the frame, timing each of them.
+    private void runStages(List<FrameStage> stages, FrameContext context) {
+        for (FrameStage stage : stages) {
+            long startTime = System.currentTimeMillis();
+            stage.process(context);
+            long stageTime = System.currentTimeMillis() - startTime;
+
+            context.addStageTime(stageTime);
+            long[] times = stageTimes.get(stage);
+            times[0] += stageTime;
+            times[1]++;
+            if (times[1] == STAGE_TIMES_LOG_INTERVAL) {
+                Log.d(TAG, "runStages: " + stage.getName() + " took " + (double) times[0] / times[1]
+                        + " ms on average over " + times[1] + " frames");
+                times[0] = 0;
+                times[1] = 0;
+            }
+        }
+    }
+
+    // Moves frames from one queue to the next through the stages until the pipeline is shut down.
+    private void runStageLoop(SpscQueue<FrameContext> input, List<FrameStage> stages, SpscQueue<FrameContext> output) {
+        FrameContext context = null;
+        try {
+            while ((context = input.take()) != null) {
+                runStages(stages, context);
+                if (!output.put(context)) {
+                    break;
+                }
+                context = null;
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "runStageLoop: " + Thread.currentThread().getName() + " stopped.");
+        }
+
+        // A frame taken but not handed on when the pipeline was shut down.
+        if (context != null) {
+            recycleInput(context.getGray(), context.getSegmentationRgb());
+        }
+    }
+
+    // Joins the binarized frames with the latest mask of the segmentation lane, in frame order.
+    private void runCommitLoop() {
+        try {
+            FrameContext context;
+            while ((context = binarizedQueue.take()) != null) {
+                runStages(maskStages, context);
+                commit(context, segmentationLane.isAppliedMaskFresh());
+                publish(context);
+
+                recycleInput(context.getGray(), context.getSegmentationRgb());
+                freeContexts.offer(context);
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "runCommitLoop: Commit stage stopped.");
+        }
+    }
+
+    // Makes the model available to other threads if the frame changed it, and tells the listeners what changed.
+    private void publish(FrameContext context) {
+        List<Rect> changedRegions = context.getChangedRegions();
+        if (changedRegions.isEmpty()) {
+            return;
+        }
+
+        long version;
+        synchronized (publishedModel) {
+            currentModel.copyTo(publishedModel);
+            version = ++modelVersion;
+        }
+
+        // Copied, as the context is reused for later frames.
+        List<Rect> regions = Collections.unmodifiableList(new ArrayList<>(changedRegions));
+        for (ModelChangeListener listener : modelChangeListeners) {
+            listener.onModelChanged(version, regions);
+        }
+    }
+
+    // Updates the model with the persistent changes of the frame.
+    // The static scene gate only settles on frames committed with a fresh segmentation mask.
+    private void commit(FrameContext context, boolean isMaskFresh) {
+        if (context.getSequenceNumber() <= committedSequenceNumber) {
+            throw new IllegalStateException("Frame " + context.getSequenceNumber() + " committed after frame " + committedSequenceNumber);
+        }
+
+        runStages(commitStages, context);
+
+        committedSequenceNumber = context.getSequenceNumber();
+        staticSceneGate.recordCommit(committedSequenceNumber, isMaskFresh);
+        staticSceneGate.recordPipelineTime(context.getStageTimeMs());
+    }
 }
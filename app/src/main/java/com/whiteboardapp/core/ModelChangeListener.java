@@ -0,0 +1,15 @@
+package com.whiteboardapp.core;
+
+
+import org.opencv.core.Rect;
+
+import java.util.List;
+
+// Gets told when changes have been committed to the model of a capture service.
+// Called on the thread committing the changes, so implementations should return quickly.
+public interface ModelChangeListener {
+
+    // The model now has the given version, which differs from the previous version only inside the regions.
+    // The regions are in board coordinates and must not be modified.
+    void onModelChanged(long modelVersion, List<Rect> changedRegions);
+}
@@ -0,0 +1,187 @@
+package com.whiteboardapp.core;
+
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import android.util.Size;
+
+import com.whiteboardapp.common.MatPool;
+import com.whiteboardapp.core.pipeline.CornerDetector;
+import com.whiteboardapp.core.pipeline.PerspectiveTransformer;
+import com.whiteboardapp.core.pipeline.SegmentationModel;
+import com.whiteboardapp.core.pipeline.Segmentator;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+// Picks the analysis resolution for the device by timing the real pipeline on synthetic frames.
+// The calibration is done once (it takes a few seconds) and the result is stored in shared preferences.
+public class ResolutionCalibrator {
+
+    private static final String TAG = "ResolutionCalibrator";
+
+    private static final String PREFERENCES_NAME = "resolution_calibration";
+    private static final String KEY_WIDTH = "width";
+    private static final String KEY_HEIGHT = "height";
+    private static final String KEY_FRAME_TIME_TARGET = "frame_time_target";
+    private static final String KEY_VERSION = "version";
+
+    // Increased when the way the pipeline is timed changes, so calibrations stored before are done again.
+    // Version 2 times the pipeline with the static scene and sharpness gates bypassed, which skipped the
+    // repeated frames of version 1 and made every device calibrate to the highest resolution.
+    private static final int CALIBRATION_VERSION = 2;
+
+    public static final long DEFAULT_FRAME_TIME_TARGET_MS = 250;
+
+    // Candidate analysis resolutions (4:3 like the camera sensor) from lowest to highest.
+    private static final Size[] CANDIDATE_RESOLUTIONS = {
+            new Size(640, 480),
+            new Size(960, 720),
+            new Size(1280, 960),
+            new Size(1600, 1200),
+            new Size(1920, 1440)
+    };
+
+    private static final int WARM_UP_ROUNDS = 1;
+    private static final int MEASURE_ROUNDS = 3;
+
+    private final Context context;
+    private final long frameTimeTargetMs;
+
+    public ResolutionCalibrator(Context context) {
+        this(context, DEFAULT_FRAME_TIME_TARGET_MS);
+    }
+
+    public ResolutionCalibrator(Context context, long frameTimeTargetMs) {
+        this.context = context;
+        this.frameTimeTargetMs = frameTimeTargetMs;
+    }
+
+    // Returns the stored resolution or null if the device has not been calibrated for the current target,
+    // or was calibrated by an older version of the calibration.
+    public Size getCalibratedResolution() {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (!preferences.contains(KEY_WIDTH) || preferences.getLong(KEY_FRAME_TIME_TARGET, -1) != frameTimeTargetMs
+                || preferences.getInt(KEY_VERSION, 1) != CALIBRATION_VERSION) {
+            return null;
+        }
+        return new Size(preferences.getInt(KEY_WIDTH, 0), preferences.getInt(KEY_HEIGHT, 0));
+    }
+
+    // Returns the stored resolution, calibrating first if needed.
+    // NB: Runs the full pipeline several times. Do not call on the main thread.
+    public Size getOrCalibrateResolution() {
+        Size resolution = getCalibratedResolution();
+        if (resolution == null) {
+            resolution = calibrate();
+        }
+        return resolution;
+    }
+
+    // Times the pipeline at each candidate resolution and stores the highest one meeting the frame time target.
+    // Falls back to the lowest candidate if none meet it.
+    public Size calibrate() {
+        Size bestResolution = CANDIDATE_RESOLUTIONS[0];
+
+        // The model input size does not depend on the resolution, so all candidates share one model.
+        try (SegmentationModel segmentationModel = new SegmentationModel(context)) {
+            for (Size resolution : CANDIDATE_RESOLUTIONS) {
+                long frameTimeMs = measureFrameTime(resolution, segmentationModel);
+                Log.i(TAG, "calibrate: " + resolution + " takes " + frameTimeMs + " ms per frame. Target is " + frameTimeTargetMs + " ms.");
+
+                // Higher resolutions will only be slower.
+                if (frameTimeMs > frameTimeTargetMs) {
+                    break;
+                }
+                bestResolution = resolution;
+            }
+        }
+
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_WIDTH, bestResolution.getWidth())
+                .putInt(KEY_HEIGHT, bestResolution.getHeight())
+                .putLong(KEY_FRAME_TIME_TARGET, frameTimeTargetMs)
+                .putInt(KEY_VERSION, CALIBRATION_VERSION)
+                .apply();
+
+        Log.i(TAG, "calibrate: Using analysis resolution " + bestResolution);
+        return bestResolution;
+    }
+
+    // Median time of the slower of the two phases of the analysis:
+    // corner detection before capturing, and perspective + capture pipeline while capturing.
+    private long measureFrameTime(Size resolution, SegmentationModel segmentationModel) {
+        Mat imgBgr = createSyntheticFrame(resolution.getWidth(), resolution.getHeight());
+        Mat imgGray = new Mat();
+        Imgproc.cvtColor(imgBgr, imgGray, Imgproc.COLOR_BGR2GRAY);
+        Mat imgRgb = new Mat();
+        Imgproc.cvtColor(imgBgr, imgRgb, Imgproc.COLOR_BGR2RGB);
+
+        CornerDetector cornerDetector = new CornerDetector();
+        PerspectiveTransformer transformer = new PerspectiveTransformer();
+        transformer.lock();
+        MatOfPoint2f cornerPoints = getSyntheticCorners(resolution.getWidth(), resolution.getHeight());
+        CaptureService captureService = null;
+
+        long[] frameTimes = new long[MEASURE_ROUNDS];
+        for (int i = 0; i < WARM_UP_ROUNDS + MEASURE_ROUNDS; i++) {
+            long startTime = System.currentTimeMillis();
+            cornerDetector.findCorners(imgBgr);
+            long cornerTime = System.currentTimeMillis() - startTime;
+
+            startTime = System.currentTimeMillis();
+            Mat imgPerspectiveGray = transformer.getPerspective(imgGray, cornerPoints, 0);
+            Mat imgSegmentationRgb = transformer.getPerspective(imgRgb, cornerPoints, 0, Segmentator.MODEL_INPUT_SIZE);
+            if (captureService == null) {
+                captureService = new CaptureService(imgPerspectiveGray.width(), imgPerspectiveGray.height(), segmentationModel);
+                // Every round uses the same frame, which the gates would skip after the first ones.
+                captureService.setGatesBypassed(true);
+            }
+            captureService.capture(imgPerspectiveGray, imgSegmentationRgb);
+            long captureTime = System.currentTimeMillis() - startTime;
+
+            // The locked transformer takes the perspectives from the pool.
+            MatPool.getInstance().recycle(imgPerspectiveGray);
+            MatPool.getInstance().recycle(imgSegmentationRgb);
+
+            if (i >= WARM_UP_ROUNDS) {
+                frameTimes[i - WARM_UP_ROUNDS] = Math.max(cornerTime, captureTime);
+            }
+        }
+
+        Arrays.sort(frameTimes);
+        return frameTimes[MEASURE_ROUNDS / 2];
+    }
+
+    // Gray background with a slightly tilted white board with some strokes on it.
+    private Mat createSyntheticFrame(int width, int height) {
+        Mat imgBgr = new Mat(height, width, CvType.CV_8UC3, new Scalar(110, 110, 110));
+
+        MatOfPoint board = new MatOfPoint(getSyntheticCorners(width, height).toArray());
+        Imgproc.fillConvexPoly(imgBgr, board, new Scalar(235, 235, 235));
+
+        for (int i = 1; i < 8; i++) {
+            Point start = new Point(width * 0.2, height * (0.15 + i * 0.08));
+            Point end = new Point(width * (0.3 + i * 0.06), height * (0.18 + i * 0.08));
+            Imgproc.line(imgBgr, start, end, new Scalar(40, 40, 40), Math.max(2, width / 400));
+        }
+        return imgBgr;
+    }
+
+    // Corners of the synthetic board ordered tl, tr, br, bl.
+    private MatOfPoint2f getSyntheticCorners(int width, int height) {
+        return new MatOfPoint2f(
+                new Point(width * 0.12, height * 0.10),
+                new Point(width * 0.90, height * 0.08),
+                new Point(width * 0.92, height * 0.88),
+                new Point(width * 0.10, height * 0.92));
+    }
+}
@@ -1,30 +1,232 @@
 package com.whiteboardapp.core.pipeline;
 
 
+import com.whiteboardapp.common.BinaryImage;
+import com.whiteboardapp.common.BinaryMorphology;
+import com.whiteboardapp.common.MatScope;
+import com.whiteboardapp.common.PixelBuffer;
+
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.opencv.imgproc.Imgproc;
 
-public class Binarization {
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Binarizes the board, only redoing the tiles of the board that have changed since they were last binarized.
+// Changed tiles are found on a small luma thumbnail. The other tiles keep their previous result, so the cost
+// follows the changed area rather than the board size.
+// Marks of a few pixels, e.g. dots and ticks, hardly move the thumbnail, so one tile row is also binarized again
+// every frame, in turn. Its tiles only count as changed if their result did, so every mark is found within as
+// many frames as there are tile rows, for one extra tile row of work per frame.
+public class Binarization implements FrameStage {
 
     private static final int MAX_THRESH_VALUE = 255;
     private static final int BLOCK_SIZE = 21;
     private static final int C = 4;
     private static final int BLUR_KERNEL_SIZE = 3;
 
+    private static final int TILE_SIZE = FrameContext.TILE_SIZE;
+
+    // Pixels around a tile that affect its result: the threshold block and the noise filter.
+    // Thresholding this far around the tile gives the same result as thresholding the whole board.
+    private static final int HALO = BLOCK_SIZE / 2 + BLUR_KERNEL_SIZE / 2;
+
+    // Thumbnail cells are averages of 16x16 pixels. A new stroke changes a cell by far more than sensor noise.
+    private static final int CELL_SIZE = 16;
+    private static final int MAX_CELL_DIFF = 4;
+
+    // Thresholded board, 8-bit from OpenCV and bit-packed for the noise filter.
+    private PixelBuffer imgThreshold;
+    private BinaryImage thresholdBits;
+    private final BinaryMorphology morphology = new BinaryMorphology();
+
+    // Binarized board as of the last frame, kept for the tiles that do not change.
+    private BinaryImage binarizedBits;
+
+    // Thumbnail of the board now and as of the last binarization of each cell.
+    private PixelBuffer thumbnail;
+    private byte[] referenceThumbnail;
+    private boolean[] dirtyTiles;
+    private boolean hasBinarized = false;
+
+    // Tile row to binarize again in the next frame, and its result from before.
+    private int refreshTileRow = 0;
+    private long[] refreshWords;
+
+    // Binarizes the gray scale board into the bit-packed binarized board of the context, and marks the tiles that
+    // were binarized again as dirty in the context.
+    // Same result as binarize, with the median blur done as a majority filter on the packed bits.
+    @Override
+    public void process(FrameContext context) {
+        Mat imgGray = context.getGray();
+        ensureBuffers(context);
+
+        Imgproc.resize(imgGray, thumbnail.getMat(), thumbnail.getMat().size(), 0, 0, Imgproc.INTER_AREA);
+        if (!hasBinarized) {
+            Arrays.fill(dirtyTiles, true);
+        } else {
+            findDirtyTiles(context);
+        }
+
+        int tileRows = context.getTileRows();
+        int tileColumns = context.getTileColumns();
+        if (!hasBinarized || countDirtyTiles() == dirtyTiles.length) {
+            // Everything changed, e.g. the first frame. One pass over the whole board.
+            thumbnail.getPixels().get(0, referenceThumbnail);
+            binarizeRegion(imgGray, 0, tileRows, 0, tileColumns);
+            hasBinarized = true;
+        } else {
+            // Runs of dirty tiles in each tile row are binarized together.
+            for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+                for (int tileColumn = 0; tileColumn < tileColumns; ) {
+                    if (!dirtyTiles[tileRow * tileColumns + tileColumn]) {
+                        tileColumn++;
+                        continue;
+                    }
+                    int firstTileColumn = tileColumn;
+                    while (tileColumn < tileColumns && dirtyTiles[tileRow * tileColumns + tileColumn]) {
+                        tileColumn++;
+                    }
+                    binarizeRegion(imgGray, tileRow, tileRow + 1, firstTileColumn, tileColumn);
+                }
+            }
+            refreshTileRow(imgGray, tileRows, tileColumns);
+        }
+
+        binarizedBits.copyTo(context.getBinarizedBits());
+        for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+            for (int tileColumn = 0; tileColumn < tileColumns; tileColumn++) {
+                context.setBinarizedTileDirty(tileRow, tileColumn, dirtyTiles[tileRow * tileColumns + tileColumn]);
+            }
+        }
+    }
+
     // Binarizes a gray scale image.
     public static Mat binarize(Mat imgGray) {
-        Mat imgBinarizedThreshold = new Mat();
-        Imgproc.adaptiveThreshold(imgGray, imgBinarizedThreshold, MAX_THRESH_VALUE, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, Imgproc.THRESH_BINARY_INV, BLOCK_SIZE, C);
+        Mat imgBinarized = new Mat();
+        binarize(imgGray, imgBinarized, new Mat());
+        return imgBinarized;
+    }
+
+    private static void binarize(Mat imgGray, Mat imgBinarized, Mat imgThreshold) {
+        Imgproc.adaptiveThreshold(imgGray, imgThreshold, MAX_THRESH_VALUE, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, Imgproc.THRESH_BINARY_INV, BLOCK_SIZE, C);
 
         // Clean image - removes most of the noise
-        Mat imgBinarizedThresholdBlur = new Mat();
-        Imgproc.medianBlur(imgBinarizedThreshold, imgBinarizedThresholdBlur, BLUR_KERNEL_SIZE);
+        Imgproc.medianBlur(imgThreshold, imgBinarized, BLUR_KERNEL_SIZE);
 
         // Invert image (black on white background)
-        Mat imgBinarizedFinal = new Mat();
-        Core.bitwise_not(imgBinarizedThresholdBlur, imgBinarizedFinal);
+        Core.bitwise_not(imgBinarized, imgBinarized);
+    }
+
+    private void ensureBuffers(FrameContext context) {
+        int rows = (int) context.getBoardSize().height;
+        int cols = (int) context.getBoardSize().width;
+        if (binarizedBits != null && binarizedBits.rows() == rows && binarizedBits.cols() == cols) {
+            return;
+        }
 
-        return imgBinarizedFinal;
+        imgThreshold = new PixelBuffer(rows, cols);
+        thresholdBits = new BinaryImage(rows, cols);
+        binarizedBits = new BinaryImage(rows, cols);
+        thumbnail = new PixelBuffer((rows + CELL_SIZE - 1) / CELL_SIZE, (cols + CELL_SIZE - 1) / CELL_SIZE);
+        referenceThumbnail = new byte[thumbnail.size()];
+        dirtyTiles = new boolean[context.getTileRows() * context.getTileColumns()];
+        hasBinarized = false;
+        refreshTileRow = 0;
+        refreshWords = new long[TILE_SIZE * binarizedBits.getWordsPerRow()];
+    }
+
+    // Marks the tiles under thumbnail cells that changed since they were last binarized.
+    private void findDirtyTiles(FrameContext context) {
+        Arrays.fill(dirtyTiles, false);
+        ByteBuffer cells = thumbnail.getPixels();
+        int tileColumns = context.getTileColumns();
+        int rows = (int) context.getBoardSize().height;
+        int cols = (int) context.getBoardSize().width;
+        double cellHeight = (double) rows / thumbnail.rows();
+        double cellWidth = (double) cols / thumbnail.cols();
+
+        for (int cellRow = 0; cellRow < thumbnail.rows(); cellRow++) {
+            for (int cellColumn = 0; cellColumn < thumbnail.cols(); cellColumn++) {
+                int i = cellRow * thumbnail.cols() + cellColumn;
+                byte value = cells.get(i);
+                if (Math.abs((value & 0xFF) - (referenceThumbnail[i] & 0xFF)) <= MAX_CELL_DIFF) {
+                    continue;
+                }
+                referenceThumbnail[i] = value;
+
+                // The cell's pixels affect every tile within the halo of them, which may be more than one.
+                int firstTileRow = Math.max((int) (cellRow * cellHeight) - HALO, 0) / TILE_SIZE;
+                int lastTileRow = Math.min((int) Math.ceil((cellRow + 1) * cellHeight) - 1 + HALO, rows - 1) / TILE_SIZE;
+                int firstTileColumn = Math.max((int) (cellColumn * cellWidth) - HALO, 0) / TILE_SIZE;
+                int lastTileColumn = Math.min((int) Math.ceil((cellColumn + 1) * cellWidth) - 1 + HALO, cols - 1) / TILE_SIZE;
+                for (int tileRow = firstTileRow; tileRow <= lastTileRow; tileRow++) {
+                    for (int tileColumn = firstTileColumn; tileColumn <= lastTileColumn; tileColumn++) {
+                        dirtyTiles[tileRow * tileColumns + tileColumn] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // Binarizes the next tile row in turn again and marks its tiles whose result changed as dirty.
+    private void refreshTileRow(Mat imgGray, int tileRows, int tileColumns) {
+        int tileRow = refreshTileRow;
+        refreshTileRow = (refreshTileRow + 1) % tileRows;
+
+        long[] words = binarizedBits.getWords();
+        int wordsPerRow = binarizedBits.getWordsPerRow();
+        int firstWord = tileRow * TILE_SIZE * wordsPerRow;
+        int endWord = Math.min((tileRow + 1) * TILE_SIZE, binarizedBits.rows()) * wordsPerRow;
+        System.arraycopy(words, firstWord, refreshWords, 0, endWord - firstWord);
+
+        binarizeRegion(imgGray, tileRow, tileRow + 1, 0, tileColumns);
+
+        // Tile columns are words of the packed rows.
+        for (int i = firstWord; i < endWord; i++) {
+            if (words[i] != refreshWords[i - firstWord]) {
+                dirtyTiles[tileRow * tileColumns + i % wordsPerRow] = true;
+            }
+        }
+    }
+
+    private int countDirtyTiles() {
+        int count = 0;
+        for (boolean isDirty : dirtyTiles) {
+            count += isDirty ? 1 : 0;
+        }
+        return count;
+    }
+
+    // Binarizes the given tiles (end exclusive) into the binarized board.
+    private void binarizeRegion(Mat imgGray, int firstTileRow, int endTileRow, int firstTileColumn, int endTileColumn) {
+        int rows = imgGray.rows();
+        int cols = imgGray.cols();
+        int top = firstTileRow * TILE_SIZE;
+        int bottom = Math.min(endTileRow * TILE_SIZE, rows);
+        int left = firstTileColumn * TILE_SIZE;
+        int right = Math.min(endTileColumn * TILE_SIZE, cols);
+
+        int haloTop = Math.max(top - HALO, 0);
+        int haloLeft = Math.max(left - HALO, 0);
+        Rect haloRegion = new Rect(haloLeft, haloTop, Math.min(right + HALO, cols) - haloLeft, Math.min(bottom + HALO, rows) - haloTop);
+        try (MatScope scope = new MatScope()) {
+            Mat imgGrayRegion = scope.track(imgGray.submat(haloRegion));
+            Mat imgThresholdRegion = scope.track(imgThreshold.getMat().submat(haloRegion));
+            Imgproc.adaptiveThreshold(imgGrayRegion, imgThresholdRegion, MAX_THRESH_VALUE, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, Imgproc.THRESH_BINARY_INV, BLOCK_SIZE, C);
+        }
+
+        // The noise filter reads one pixel around the tiles. Tile columns are words of the packed rows.
+        int wordsPerRow = thresholdBits.getWordsPerRow();
+        thresholdBits.pack(imgThreshold.getPixels(), Math.max(top - 1, 0), Math.min(bottom + 1, rows),
+                Math.max(firstTileColumn - 1, 0), Math.min(endTileColumn + 1, wordsPerRow));
+
+        // Clean image - median of a binary image is the majority of the neighbourhood
+        morphology.majority3x3(thresholdBits, binarizedBits, top, bottom, firstTileColumn, endTileColumn);
+
+        // Invert image (black on white background)
+        morphology.invert(binarizedBits, binarizedBits, top, bottom, firstTileColumn, endTileColumn);
     }
 }
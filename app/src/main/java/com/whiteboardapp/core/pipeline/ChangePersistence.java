@@ -0,0 +1,121 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.BinaryImage;
+
+// Decides which changes have persisted long enough to be committed to the model, with a saturating counter per pixel.
+// A pixel's counter goes up by one for every frame it is changed, up to the window size, and down by the decay step
+// for every frame it is not. Changes are committed once the counter reaches the commit threshold.
+// With a decay step of at least the window size, a change must be seen in commitThreshold frames in a row.
+// A smaller decay step lets changes through that flicker, roughly like K of the last N frames with decay step 1.
+// The counters are kept between frames and updated in place, so no memory is needed per frame of history.
+public class ChangePersistence {
+
+    // Seen in two frames in a row, the rule used by the change detector.
+    public static final int DEFAULT_COMMIT_THRESHOLD = 2;
+    public static final int DEFAULT_WINDOW_SIZE = 2;
+    public static final int DEFAULT_DECAY_STEP = 2;
+
+    private final int commitThreshold;
+    private final int windowSize;
+    private final int decayStep;
+
+    private final int wordsPerRow;
+    private final byte[] counters; // 64 counters per word of the mask, including the unused bits at the end of the rows.
+    private final long[] activeMasks; // Set where the counter is above 0, so words without changes can be skipped.
+
+    public ChangePersistence(int rows, int cols) {
+        this(rows, cols, DEFAULT_COMMIT_THRESHOLD, DEFAULT_WINDOW_SIZE, DEFAULT_DECAY_STEP);
+    }
+
+    public ChangePersistence(int rows, int cols, int commitThreshold, int windowSize, int decayStep) {
+        if (commitThreshold < 1 || windowSize < commitThreshold || windowSize > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Need 1 <= commit threshold <= window size <= " + Byte.MAX_VALUE
+                    + ", was " + commitThreshold + " and " + windowSize);
+        }
+        if (decayStep < 1) {
+            throw new IllegalArgumentException("Decay step must be positive, was " + decayStep);
+        }
+        this.commitThreshold = commitThreshold;
+        this.windowSize = windowSize;
+        this.decayStep = decayStep;
+
+        wordsPerRow = (cols + 63) / 64;
+        counters = new byte[rows * wordsPerRow * 64];
+        activeMasks = new long[rows * wordsPerRow];
+    }
+
+    // Counts the changes of a word of a bit-packed change mask and returns the ones to commit.
+    // Must be called for every word of every frame, also the ones without changes.
+    public long update(int word, long changed) {
+        long active = activeMasks[word];
+        if ((changed | active) == 0) {
+            return 0;
+        }
+
+        long persistent = 0;
+        long stillActive = 0;
+        long pending = changed | active;
+        int counterStart = word * 64;
+        while (pending != 0) {
+            int bit = Long.numberOfTrailingZeros(pending);
+            long bitMask = 1L << bit;
+            pending &= pending - 1;
+
+            int counter = counters[counterStart + bit];
+            if ((changed & bitMask) != 0) {
+                counter = Math.min(counter + 1, windowSize);
+                if (counter >= commitThreshold) {
+                    persistent |= bitMask;
+                }
+            } else {
+                counter = Math.max(counter - decayStep, 0);
+            }
+
+            counters[counterStart + bit] = (byte) counter;
+            if (counter > 0) {
+                stillActive |= bitMask;
+            }
+        }
+
+        activeMasks[word] = stillActive;
+        return persistent;
+    }
+
+    // Checks if any pixel of the word has been seen changed and not yet decayed, i.e. update may return changes
+    // for the word even if it is given no new ones.
+    public boolean hasPendingChanges(int word) {
+        return activeMasks[word] != 0;
+    }
+
+    // Forgets all changes seen so far.
+    public void reset() {
+        for (int i = 0; i < activeMasks.length; i++) {
+            if (activeMasks[i] != 0) {
+                for (int bit = 0; bit < 64; bit++) {
+                    counters[i * 64 + bit] = 0;
+                }
+                activeMasks[i] = 0;
+            }
+        }
+    }
+
+    // Number of frames a change must be seen in before it is committed (K of K-of-N).
+    public int getCommitThreshold() {
+        return commitThreshold;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getDecayStep() {
+        return decayStep;
+    }
+
+    public void checkSize(BinaryImage image) {
+        if (image.getWordsPerRow() != wordsPerRow || image.getWords().length != activeMasks.length) {
+            throw new IllegalArgumentException("Image size " + image.cols() + "x" + image.rows() + " does not match the counters");
+        }
+    }
+}
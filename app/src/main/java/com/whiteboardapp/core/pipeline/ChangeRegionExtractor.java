@@ -0,0 +1,87 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.BinaryImage;
+
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Sums up the changes committed to the model as a short list of rectangles, so consumers can update only those.
+// The board is split into the tiles of the frame context, one word of the bit-packed changes wide. Runs of changed
+// tiles in a tile row become a rectangle, which grows downwards while the next tile rows have a run with the same columns.
+public class ChangeRegionExtractor implements FrameStage {
+
+    private static final int TILE_SIZE = FrameContext.TILE_SIZE;
+
+    private long[] tileRowChanges;
+    private final List<Rect> previousRowRegions = new ArrayList<>();
+    private final List<Rect> currentRowRegions = new ArrayList<>();
+
+    // Writes the regions of the persistent changes of the context into its changed regions.
+    @Override
+    public void process(FrameContext context) {
+        extract(context.getPersistentChangeBits(), context.getChangedRegions());
+    }
+
+    // Adds rectangles covering all set pixels of the changes to regions.
+    public void extract(BinaryImage changes, List<Rect> regions) {
+        int wordsPerRow = changes.getWordsPerRow();
+        long[] words = changes.getWords();
+        if (tileRowChanges == null || tileRowChanges.length != wordsPerRow) {
+            tileRowChanges = new long[wordsPerRow];
+        }
+        previousRowRegions.clear();
+
+        for (int tileTop = 0; tileTop < changes.rows(); tileTop += TILE_SIZE) {
+            int tileBottom = Math.min(tileTop + TILE_SIZE, changes.rows());
+
+            // A tile is changed if any of its words are.
+            for (int word = 0; word < wordsPerRow; word++) {
+                tileRowChanges[word] = 0;
+            }
+            for (int row = tileTop; row < tileBottom; row++) {
+                for (int word = 0; word < wordsPerRow; word++) {
+                    tileRowChanges[word] |= words[row * wordsPerRow + word];
+                }
+            }
+
+            currentRowRegions.clear();
+            for (int word = 0; word < wordsPerRow; ) {
+                if (tileRowChanges[word] == 0) {
+                    word++;
+                    continue;
+                }
+                int runStart = word;
+                while (word < wordsPerRow && tileRowChanges[word] != 0) {
+                    word++;
+                }
+                int x = runStart * TILE_SIZE;
+                int width = Math.min(word * TILE_SIZE, changes.cols()) - x;
+                currentRowRegions.add(extendOrCreate(x, width, tileTop, tileBottom - tileTop));
+            }
+
+            // Regions of the previous tile row that did not grow are done.
+            for (Rect region : previousRowRegions) {
+                if (!currentRowRegions.contains(region)) {
+                    regions.add(region);
+                }
+            }
+            previousRowRegions.clear();
+            previousRowRegions.addAll(currentRowRegions);
+        }
+        regions.addAll(previousRowRegions);
+    }
+
+    // Grows the region of the previous tile row with the same columns, or starts a new one.
+    private Rect extendOrCreate(int x, int width, int y, int height) {
+        for (Rect region : previousRowRegions) {
+            if (region.x == x && region.width == width) {
+                region.height += height;
+                return region;
+            }
+        }
+        return new Rect(x, y, width, height);
+    }
+}
@@ -4,6 +4,7 @@ package com.whiteboardapp.core.pipeline;
 import android.util.Log;
 
 import com.whiteboardapp.common.Calculator;
+import com.whiteboardapp.common.MatScope;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -29,70 +30,76 @@ public class CornerDetector {
     private final int GAUSS_SIGMA = 1;
 
     private final int DILATION_KERNEL_SIZE = 3;
+    private final Mat dilationKernel = Mat.ones(new Size(DILATION_KERNEL_SIZE, DILATION_KERNEL_SIZE), CvType.CV_8U);
 
     // Finds corners in an image.
+    // Intermediate images are given back to the mat pool before returning.
     public MatOfPoint2f findCorners(Mat imgBgr) {
-        Mat imgEdges = makeEdgeImage(imgBgr);
-        MatOfPoint2f cornerPoints = getCorners(imgEdges);
-        if (cornerPoints.height() == 4) {
-            cornerPoints = orderPoints(cornerPoints);
-        }
+        try (MatScope scope = new MatScope()) {
+            Mat imgEdges = makeEdgeImage(imgBgr, scope);
+            MatOfPoint2f cornerPoints = getCorners(imgEdges, scope);
+            if (cornerPoints.height() == 4) {
+                cornerPoints = orderPoints(scope.track(cornerPoints));
+            }
 
-        return cornerPoints;
+            return cornerPoints;
+        }
     }
 
     // Finds edges in an image.
-    private Mat makeEdgeImage(Mat imgBgr) {
+    private Mat makeEdgeImage(Mat imgBgr, MatScope scope) {
 
         // Convert to gray scale.
-        Mat imgGray = new Mat();
+        Mat imgGray = scope.obtain(imgBgr.size(), CvType.CV_8UC1);
         Imgproc.cvtColor(imgBgr, imgGray, Imgproc.COLOR_BGR2GRAY);
 
         // Blur the image to remove noise.
-        Mat imgBlur = new Mat();
+        Mat imgBlur = scope.obtain(imgBgr.size(), CvType.CV_8UC1);
         Imgproc.GaussianBlur(imgGray, imgBlur, new Size(BLUR_KERNEL_SIZE, BLUR_KERNEL_SIZE), GAUSS_SIGMA);
 
         // Find edges.
-        Mat imgEdgesCanny = new Mat();
+        Mat imgEdgesCanny = scope.obtain(imgBgr.size(), CvType.CV_8UC1);
         Imgproc.Canny(imgBlur, imgEdgesCanny, THRESHOLD_CANNY_MIN, THRESHOLD_CANNY_MAX);
 
         // Enhance edges with dilation
-        Mat imgEdgesDilated = new Mat();
-        Mat dilationKernel = Mat.ones(new Size(DILATION_KERNEL_SIZE, DILATION_KERNEL_SIZE), CvType.CV_8U);
+        Mat imgEdgesDilated = scope.obtain(imgBgr.size(), CvType.CV_8UC1);
 
         Imgproc.dilate(imgEdgesCanny, imgEdgesDilated, dilationKernel);
 
         return imgEdgesDilated;
     }
 
-    private MatOfPoint2f getCorners(Mat imgEdges) {
+    private MatOfPoint2f getCorners(Mat imgEdges, MatScope scope) {
         // Find contours
         ArrayList<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-        Mat hierarchy = new Mat();
+        Mat hierarchy = scope.track(new Mat());
         Imgproc.findContours(imgEdges, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        for (MatOfPoint contour : contours) {
+            scope.track(contour);
+        }
 
         if (contours.size() == 0) {
             return new MatOfPoint2f();
         }
 
         // Find largest shape
-        MatOfPoint2f shapePoints = findLargestShapePoints(contours);
+        MatOfPoint2f shapePoints = findLargestShapePoints(contours, scope);
         MatOfPoint2f cornerPoints = approxCornerPoints(shapePoints, imgEdges);
         return cornerPoints;
 
     }
 
-    private MatOfPoint2f findLargestShapePoints(ArrayList<MatOfPoint> contours) {
+    private MatOfPoint2f findLargestShapePoints(ArrayList<MatOfPoint> contours, MatScope scope) {
         double PERIMETER_MARGIN_PERCENT = 0.02;
         double maxPerimeter = 0;
         MatOfPoint2f shapePoints = null;
 
         for (MatOfPoint contour : contours) {
-            MatOfPoint2f contour2f = new MatOfPoint2f(contour.toArray());
+            MatOfPoint2f contour2f = scope.track(new MatOfPoint2f(contour.toArray()));
             // Find contour with the largest perimeter.
             double perimeter = Imgproc.arcLength(contour2f, false);
             if (perimeter > maxPerimeter) {
-                MatOfPoint2f approxShapePoints = new MatOfPoint2f();
+                MatOfPoint2f approxShapePoints = scope.track(new MatOfPoint2f());
 
                 Imgproc.approxPolyDP(contour2f, approxShapePoints, PERIMETER_MARGIN_PERCENT * perimeter, false);
                 shapePoints = approxShapePoints;
@@ -0,0 +1,163 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.BinaryImage;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// State of one frame on its way through the capture pipeline.
+// Owns the buffers stages write their results into, allocated once for the board size. Contexts are reused
+// for later frames, so the pipeline does not allocate images once it is running.
+// The pipeline works on bit-packed results only.
+public class FrameContext {
+
+    // Size of the tiles the board is split into to track which parts of it changed. One word of a bit-packed row wide.
+    public static final int TILE_SIZE = 64;
+
+    private final Size boardSize;
+    private final int tileRows;
+    private final int tileColumns;
+
+    // Input, owned by the caller.
+    private long sequenceNumber = -1;
+    private Mat imgGray;
+    private Mat imgSegmentationRgb;
+
+    // Stage results.
+    private final BinaryImage segMask;
+    private final BinaryImage binarizedBits;
+    private final BinaryImage persistentChangeBits;
+    private final List<Rect> changedRegions = new ArrayList<>();
+
+    // Tiles where the binarized board or the segmentation mask may differ from the previous frame.
+    // All tiles are dirty unless the stage producing the result says otherwise.
+    private final boolean[] binarizedDirtyTiles;
+    private final boolean[] segMaskDirtyTiles;
+
+    private long stageTimeMs = 0;
+
+    public FrameContext(int width, int height) {
+        boardSize = new Size(width, height);
+        segMask = new BinaryImage(height, width);
+        binarizedBits = new BinaryImage(height, width);
+        persistentChangeBits = new BinaryImage(height, width);
+
+        tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tileColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        binarizedDirtyTiles = new boolean[tileRows * tileColumns];
+        segMaskDirtyTiles = new boolean[tileRows * tileColumns];
+    }
+
+    // Starts a new frame. The board in gray scale must have the size of the context.
+    // The input images are not copied and must stay unchanged until the frame has been through the pipeline.
+    public void setInput(long sequenceNumber, Mat imgGray, Mat imgSegmentationRgb) {
+        if (!imgGray.size().equals(boardSize)) {
+            throw new IllegalArgumentException("Frame size " + imgGray.size() + " does not match board size " + boardSize);
+        }
+
+        this.sequenceNumber = sequenceNumber;
+        this.imgGray = imgGray;
+        this.imgSegmentationRgb = imgSegmentationRgb;
+        changedRegions.clear();
+        Arrays.fill(binarizedDirtyTiles, true);
+        Arrays.fill(segMaskDirtyTiles, true);
+        stageTimeMs = 0;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public Size getBoardSize() {
+        return boardSize;
+    }
+
+    // Board in gray scale at full resolution.
+    public Mat getGray() {
+        return imgGray;
+    }
+
+    // Board in RGB at segmentation model input size.
+    public Mat getSegmentationRgb() {
+        return imgSegmentationRgb;
+    }
+
+    // Segmentation map, bit-packed. Set where people or other objects are in front of the board.
+    public BinaryImage getSegMask() {
+        return segMask;
+    }
+
+    // Binarized board, bit-packed.
+    public BinaryImage getBinarizedBits() {
+        return binarizedBits;
+    }
+
+    // Persistent changes, bit-packed.
+    public BinaryImage getPersistentChangeBits() {
+        return persistentChangeBits;
+    }
+
+    // Regions of the board where changes were committed to the model.
+    public List<Rect> getChangedRegions() {
+        return changedRegions;
+    }
+
+    public int getTileRows() {
+        return tileRows;
+    }
+
+    public int getTileColumns() {
+        return tileColumns;
+    }
+
+    // Checks if the binarized board or the segmentation mask may have changed in the tile since the previous frame.
+    public boolean isTileDirty(int tileRow, int tileColumn) {
+        int index = tileRow * tileColumns + tileColumn;
+        return binarizedDirtyTiles[index] || segMaskDirtyTiles[index];
+    }
+
+    public void setBinarizedTileDirty(int tileRow, int tileColumn, boolean isDirty) {
+        binarizedDirtyTiles[tileRow * tileColumns + tileColumn] = isDirty;
+    }
+
+    public void setSegMaskTileDirty(int tileRow, int tileColumn, boolean isDirty) {
+        segMaskDirtyTiles[tileRow * tileColumns + tileColumn] = isDirty;
+    }
+
+    // Marks the tiles where the segmentation mask differs from the given mask of the previous frame as dirty,
+    // and the others as clean.
+    public void setSegMaskTilesDirty(BinaryImage previousSegMask) {
+        segMask.checkSameSize(previousSegMask);
+        long[] words = segMask.getWords();
+        long[] previousWords = previousSegMask.getWords();
+        int wordsPerRow = segMask.getWordsPerRow();
+        for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+            int top = tileRow * TILE_SIZE;
+            int bottom = Math.min(top + TILE_SIZE, segMask.rows());
+            // Tile columns are words of the packed rows.
+            for (int word = 0; word < wordsPerRow; word++) {
+                boolean isChanged = false;
+                for (int row = top; row < bottom && !isChanged; row++) {
+                    int i = row * wordsPerRow + word;
+                    isChanged = words[i] != previousWords[i];
+                }
+                segMaskDirtyTiles[tileRow * tileColumns + word] = isChanged;
+            }
+        }
+    }
+
+    public void addStageTime(long timeMs) {
+        stageTimeMs += timeMs;
+    }
+
+    // Total time spent in stages for this frame.
+    public long getStageTimeMs() {
+        return stageTimeMs;
+    }
+}
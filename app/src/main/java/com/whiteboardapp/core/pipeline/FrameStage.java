@@ -0,0 +1,15 @@
+package com.whiteboardapp.core.pipeline;
+
+
+// A step of the capture pipeline. Reads its input from the frame context and writes its result into
+// the buffers of the context, so stages can be swapped, reordered and timed independently.
+// A stage is only ever run on one thread at a time.
+public interface FrameStage {
+
+    void process(FrameContext context);
+
+    // Name used when logging stage timings.
+    default String getName() {
+        return getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,128 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.BinaryImage;
+import com.whiteboardapp.common.PixelBuffer;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+// Moves a segmentation mask along with the presenter to a later frame, so a mask can be reused for a few frames
+// between segmentation runs. The motion is dense optical flow (Farneback) between the two frames, computed on
+// luma scaled down by FLOW_SCALE. The mask moved along the flow is added to the mask as it was, so a bad flow
+// estimate can only mask more of the board, never less.
+// Keeps the scaled down luma of the last frames given, as the mask of a frame arrives some frames after it.
+public class MaskPropagator {
+
+    // Flow is computed at 1/8 of the board resolution, which still follows a presenter.
+    public static final int FLOW_SCALE = 8;
+
+    // Farneback parameters: a classic pyramid with a window wide enough for a presenter's step between frames.
+    private static final double PYRAMID_SCALE = 0.5;
+    private static final int PYRAMID_LEVELS = 3;
+    private static final int WINDOW_SIZE = 15;
+    private static final int ITERATIONS = 3;
+    private static final int POLY_N = 5;
+    private static final double POLY_SIGMA = 1.2;
+
+    private final Size flowSize;
+    private final Mat[] lumaHistory;
+    private final long[] lumaSequenceNumbers;
+
+    // Mask of the frame flowed from, at flow resolution. Only made again when the mask changes.
+    private final PixelBuffer maskPixels;
+    private final Mat maskSmall = new Mat();
+    private long maskSmallSequenceNumber = -1;
+
+    private final Mat flow = new Mat();
+    private final Mat grid;
+    private final Mat map = new Mat();
+    private final Mat noMap = new Mat(); // Second map of remap, unused with a two-channel first map.
+    private final PixelBuffer movedMaskSmall;
+    private final BinaryImage movedMaskBits;
+
+    // Keeps the luma of the last historySize frames.
+    public MaskPropagator(int width, int height, int historySize) {
+        if (historySize < 2) {
+            throw new IllegalArgumentException("History must hold at least 2 frames, was " + historySize);
+        }
+        int flowRows = (height + FLOW_SCALE - 1) / FLOW_SCALE;
+        int flowCols = (width + FLOW_SCALE - 1) / FLOW_SCALE;
+        flowSize = new Size(flowCols, flowRows);
+
+        lumaHistory = new Mat[historySize];
+        lumaSequenceNumbers = new long[historySize];
+        for (int i = 0; i < historySize; i++) {
+            lumaHistory[i] = new Mat();
+            lumaSequenceNumbers[i] = -1;
+        }
+
+        maskPixels = new PixelBuffer(height, width);
+        movedMaskSmall = new PixelBuffer(flowRows, flowCols);
+        movedMaskBits = new BinaryImage(flowRows, flowCols);
+
+        // Position of each pixel, to which the flow is added to get where to take the mask from.
+        float[] positions = new float[flowRows * flowCols * 2];
+        for (int row = 0; row < flowRows; row++) {
+            for (int col = 0; col < flowCols; col++) {
+                positions[(row * flowCols + col) * 2] = col;
+                positions[(row * flowCols + col) * 2 + 1] = row;
+            }
+        }
+        grid = new Mat(flowRows, flowCols, CvType.CV_32FC2);
+        grid.put(0, 0, positions);
+    }
+
+    // Remembers the luma of a frame. Frames must be given in order.
+    public void addFrame(long sequenceNumber, Mat imgGray) {
+        int slot = (int) (sequenceNumber % lumaHistory.length);
+        Imgproc.resize(imgGray, lumaHistory[slot], flowSize, 0, 0, Imgproc.INTER_AREA);
+        lumaSequenceNumbers[slot] = sequenceNumber;
+    }
+
+    // Checks if a mask can be moved between the frames, i.e. both are still in the history.
+    public boolean canPropagate(long fromSequenceNumber, long toSequenceNumber) {
+        return fromSequenceNumber >= 0 && fromSequenceNumber <= toSequenceNumber
+                && hasFrame(fromSequenceNumber) && hasFrame(toSequenceNumber);
+    }
+
+    // Moves the mask of a frame to a later frame into dst. The mask must not change for the same frame.
+    public void propagate(BinaryImage segMask, long fromSequenceNumber, long toSequenceNumber, BinaryImage dst) {
+        if (!canPropagate(fromSequenceNumber, toSequenceNumber)) {
+            throw new IllegalArgumentException("Cannot move a mask from frame " + fromSequenceNumber + " to frame " + toSequenceNumber);
+        }
+        segMask.checkSameSize(dst);
+
+        if (maskSmallSequenceNumber != fromSequenceNumber) {
+            // Any part of the mask in a pixel marks it.
+            segMask.unpack(maskPixels.getPixels());
+            Imgproc.resize(maskPixels.getMat(), maskSmall, flowSize, 0, 0, Imgproc.INTER_AREA);
+            Imgproc.threshold(maskSmall, maskSmall, 0, 255, Imgproc.THRESH_BINARY);
+            maskSmallSequenceNumber = fromSequenceNumber;
+        }
+
+        // Flow from the later frame back to the earlier one: where each pixel of the later frame was before.
+        Mat lumaFrom = lumaHistory[(int) (fromSequenceNumber % lumaHistory.length)];
+        Mat lumaTo = lumaHistory[(int) (toSequenceNumber % lumaHistory.length)];
+        Video.calcOpticalFlowFarneback(lumaTo, lumaFrom, flow, PYRAMID_SCALE, PYRAMID_LEVELS, WINDOW_SIZE, ITERATIONS, POLY_N, POLY_SIGMA, 0);
+        Core.add(grid, flow, map);
+        Imgproc.remap(maskSmall, movedMaskSmall.getMat(), map, noMap, Imgproc.INTER_NEAREST);
+        movedMaskBits.pack(movedMaskSmall.getPixels());
+
+        // The moved mask at flow resolution, and the mask as it was at full resolution.
+        movedMaskBits.scaleUp(dst, FLOW_SCALE);
+        long[] dstWords = dst.getWords();
+        long[] maskWords = segMask.getWords();
+        for (int i = 0; i < dstWords.length; i++) {
+            dstWords[i] |= maskWords[i];
+        }
+    }
+
+    private boolean hasFrame(long sequenceNumber) {
+        return lumaSequenceNumbers[(int) (sequenceNumber % lumaHistory.length)] == sequenceNumber;
+    }
+}
@@ -0,0 +1,65 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import com.whiteboardapp.common.BinaryImage;
+
+// Segment removal, change detection and model update fused into a single pass over the bit-packed pixels.
+// With the default persistence rule, gives the same model as running the 8-bit SegmentRemover, ChangeDetector
+// and ModelUpdater in turn (kept with the tests), but reads every pixel once instead of once per stage and handles
+// 64 pixels per word operation.
+// Reads the bit-packed segmentation mask and binarized board of the context and writes its bit-packed
+// persistent changes.
+public class ModelCommitter implements FrameStage {
+
+    private final BinaryImage currentModel;
+
+    private final ChangePersistence changePersistence;
+
+    public ModelCommitter(BinaryImage currentModel) {
+        this(currentModel, new ChangePersistence(currentModel.rows(), currentModel.cols()));
+    }
+
+    public ModelCommitter(BinaryImage currentModel, ChangePersistence changePersistence) {
+        changePersistence.checkSize(currentModel);
+        this.currentModel = currentModel;
+        this.changePersistence = changePersistence;
+    }
+
+    @Override
+    public void process(FrameContext context) {
+        currentModel.checkSameSize(context.getBinarizedBits());
+
+        long[] segMask = context.getSegMask().getWords();
+        long[] binarized = context.getBinarizedBits().getWords();
+        long[] persistentChanges = context.getPersistentChangeBits().getWords();
+        long[] model = currentModel.getWords();
+        int wordsPerRow = currentModel.getWordsPerRow();
+
+        for (int i = 0; i < model.length; i++) {
+            // A word without new input and without changes waiting to persist was unchanged in the previous
+            // frame and stays so. Tile columns are words of the packed rows.
+            int row = i / wordsPerRow;
+            if (!context.isTileDirty(row / FrameContext.TILE_SIZE, i - row * wordsPerRow)
+                    && !changePersistence.hasPendingChanges(i)) {
+                persistentChanges[i] = 0;
+                continue;
+            }
+
+            // Segment removal: the segmented area is background (white) in both images.
+            long maskedBinarized = binarized[i] | segMask[i];
+            long maskedModel = model[i] | segMask[i];
+
+            // Change detection: changed where black meets white, persistent if seen changed often enough.
+            long changed = maskedBinarized ^ maskedModel;
+            long persistent = changePersistence.update(i, changed);
+            persistentChanges[i] = persistent;
+
+            // Model update: persistent changes take the binarized value.
+            model[i] = (model[i] & ~persistent) | (maskedBinarized & persistent);
+        }
+    }
+
+    public ChangePersistence getChangePersistence() {
+        return changePersistence;
+    }
+}
@@ -2,8 +2,10 @@ package com.whiteboardapp.core.pipeline;
 
 
 import com.whiteboardapp.common.Calculator;
+import com.whiteboardapp.common.MatPool;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
@@ -11,20 +13,239 @@ import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 // Transforms the perspective from given set of points.
 public class PerspectiveTransformer {
 
     private static final int CROP_MARGIN = 10;
 
+    // Margin around the board when only a region of the frame is converted.
+    private static final int ROI_MARGIN = 16;
+
     // Limit dimensions to ensure no extreme outliers in the given cornerpoints.
     private static final int MIN_DIMENSION = 100;
     private static final int MAX_DIMENSION = 5000;
 
+    private boolean isLocked = false;
+    private double[] lockedGeometry;
+    private Size lockedBoardSize;
+
+    // Fixed-point remap tables used while locked, one pair per source image geometry and output size.
+    // Index 0 holds integer coordinates (CV_16SC2) and index 1 interpolation weight indices (CV_16UC1).
+    private final Map<List<Integer>, Mat[]> remapTables = new HashMap<>();
+
     private boolean hasExtremeDimensions(double maxWidth, double maxHeight) {
         return maxWidth < MIN_DIMENSION || maxHeight < MIN_DIMENSION || maxWidth > MAX_DIMENSION || maxHeight > MAX_DIMENSION;
     }
 
     public Mat getPerspective(Mat imgRgb, MatOfPoint2f cornerPoints) {
+        return getPerspective(imgRgb, cornerPoints, 0);
+    }
+
+    // Obtains the perspective of an image that has not yet been rotated by the given (clockwise) rotation.
+    // The corner points are given in coordinates of the rotated image.
+    // Rotation, perspective transformation and cropping are folded into a single homography so the image
+    // is only warped once.
+    public Mat getPerspective(Mat img, MatOfPoint2f cornerPoints, int rotationDegrees) {
+        return getPerspective(img, cornerPoints, rotationDegrees, null);
+    }
+
+    // Same as above, but resamples the board directly to the given output size.
+    // Used to produce small inputs (e.g. for segmentation) without warping at full resolution first.
+    // If output size is null the board is kept at its own size.
+    public Mat getPerspective(Mat img, MatOfPoint2f cornerPoints, int rotationDegrees, Size outputSize) {
+        return getPerspective(img, getSourceGeometry(img), cornerPoints, rotationDegrees, outputSize);
+    }
+
+    // Same as above, but the image holds the given region of a camera frame of the given size, resized to the size
+    // of the image. Used for regions that are downsampled before they are converted to color.
+    // The region is given in coordinates of the unrotated frame.
+    public Mat getPerspective(Mat img, int frameWidth, int frameHeight, Rect frameRegion, MatOfPoint2f cornerPoints, int rotationDegrees, Size outputSize) {
+        int[] sourceGeometry = new int[]{frameWidth, frameHeight,
+                frameRegion.x, frameRegion.y, frameRegion.width, frameRegion.height, img.width(), img.height()};
+        return getPerspective(img, sourceGeometry, cornerPoints, rotationDegrees, outputSize);
+    }
+
+    private Mat getPerspective(Mat img, int[] sourceGeometry, MatOfPoint2f cornerPoints, int rotationDegrees, Size outputSize) {
+        if (isLocked) {
+            return getLockedPerspective(img, sourceGeometry, cornerPoints, rotationDegrees, outputSize);
+        }
+
+        Size boardSize = getBoardSize(cornerPoints);
+
+        // Ensure no extreme dimensions.
+        if (boardSize == null) {
+            return null;
+        }
+
+        Size targetSize = outputSize != null ? outputSize : boardSize;
+        Mat transformMatrix = getTransformMatrix(cornerPoints, boardSize, targetSize, rotationDegrees, sourceGeometry);
+
+        //	Perform perspective transformation.
+        //	Note: The given width and height are for cropping only i.e. does not affect how image is transformed.
+        Mat imgPerspective = new Mat();
+        Imgproc.warpPerspective(img, imgPerspective, transformMatrix, targetSize);
+
+        return imgPerspective;
+    }
+
+    // Locks the geometry. While locked, the mapping is only computed when the corner points or rotation change,
+    // or an image of a new size or region is given, and every frame is then warped with precomputed fixed-point remap tables.
+    // Locked perspectives are taken from the MatPool and can be given back with MatPool.recycle.
+    public void lock() {
+        isLocked = true;
+    }
+
+    // Unlocks the geometry and frees the remap tables.
+    public void unlock() {
+        isLocked = false;
+        invalidate();
+    }
+
+    public boolean isLocked() {
+        return isLocked;
+    }
+
+    // Forces the remap tables to be recomputed on the next frame.
+    public void invalidate() {
+        lockedGeometry = null;
+        lockedBoardSize = null;
+        for (Mat[] tables : remapTables.values()) {
+            tables[0].release();
+            tables[1].release();
+        }
+        remapTables.clear();
+    }
+
+    private Mat getLockedPerspective(Mat img, int[] sourceGeometry, MatOfPoint2f cornerPoints, int rotationDegrees, Size outputSize) {
+        double[] geometry = getGeometry(cornerPoints, rotationDegrees);
+
+        // Corners have been edited (or first frame), recompute the mapping.
+        if (!Arrays.equals(geometry, lockedGeometry)) {
+            invalidate();
+            lockedGeometry = geometry;
+            lockedBoardSize = getBoardSize(cornerPoints);
+        }
+
+        // Ensure no extreme dimensions.
+        if (lockedBoardSize == null) {
+            return null;
+        }
+
+        Size targetSize = outputSize != null ? outputSize : new Size((int) lockedBoardSize.width, (int) lockedBoardSize.height);
+        List<Integer> tablesKey = Arrays.asList(sourceGeometry[0], sourceGeometry[1], sourceGeometry[2], sourceGeometry[3],
+                sourceGeometry[4], sourceGeometry[5], sourceGeometry[6], sourceGeometry[7],
+                (int) targetSize.width, (int) targetSize.height);
+        Mat[] tables = remapTables.get(tablesKey);
+        if (tables == null) {
+            Mat transformMatrix = getTransformMatrix(cornerPoints, lockedBoardSize, targetSize, rotationDegrees, sourceGeometry);
+            tables = buildRemapTables(transformMatrix, targetSize);
+            remapTables.put(tablesKey, tables);
+        }
+
+        Mat imgPerspective = MatPool.getInstance().obtain(targetSize, img.type());
+        Imgproc.remap(img, imgPerspective, tables[0], tables[1], Imgproc.INTER_LINEAR);
+        return imgPerspective;
+    }
+
+    // Everything the mapping depends on, besides the source image geometry and output size.
+    private double[] getGeometry(MatOfPoint2f cornerPoints, int rotationDegrees) {
+        double[] geometry = new double[9];
+        float[] corners = new float[8];
+        cornerPoints.get(0, 0, corners);
+        for (int i = 0; i < corners.length; i++) {
+            geometry[i] = corners[i];
+        }
+        geometry[8] = rotationDegrees;
+        return geometry;
+    }
+
+    // The image may be a region (submat) of the camera frame, when only the area around the board has been
+    // converted. Returns {frame width, frame height, region x, region y, region width, region height,
+    // image width, image height}.
+    private int[] getSourceGeometry(Mat img) {
+        Size frameSize = new Size();
+        Point regionOffset = new Point();
+        img.locateROI(frameSize, regionOffset);
+        return new int[]{(int) frameSize.width, (int) frameSize.height, (int) regionOffset.x, (int) regionOffset.y,
+                img.width(), img.height(), img.width(), img.height()};
+    }
+
+    // Region of the unrotated camera frame that is needed to obtain the perspective of the given corners,
+    // i.e. the bounding box of the corners plus a margin for interpolation. Aligned to even coordinates so it
+    // lines up with the chroma samples of YUV 4:2:0 frames.
+    // The corner points are given in coordinates of the frame rotated by the given (clockwise) rotation.
+    public Rect getSourceRoi(MatOfPoint2f cornerPoints, int rotationDegrees, int frameWidth, int frameHeight) {
+        Mat rotationMatrix = getRotationMatrix(rotationDegrees, frameWidth, frameHeight);
+        MatOfPoint2f frameCorners = new MatOfPoint2f();
+        Core.perspectiveTransform(cornerPoints, frameCorners, rotationMatrix.inv());
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Point p : frameCorners.toArray()) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+
+        int left = Math.max(0, (int) Math.floor(minX) - ROI_MARGIN) & ~1;
+        int top = Math.max(0, (int) Math.floor(minY) - ROI_MARGIN) & ~1;
+        int right = Math.min(frameWidth, ((int) Math.ceil(maxX) + ROI_MARGIN + 1) & ~1);
+        int bottom = Math.min(frameHeight, ((int) Math.ceil(maxY) + ROI_MARGIN + 1) & ~1);
+
+        // Corners outside of the frame, use the whole frame.
+        if (right - left < 2 || bottom - top < 2) {
+            return new Rect(0, 0, frameWidth, frameHeight);
+        }
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    // Computes for every target pixel where to sample the source image and stores it as
+    // fixed-point tables (integer coordinates + interpolation weights index), which remap handles
+    // faster than float maps.
+    private Mat[] buildRemapTables(Mat transformMatrix, Size targetSize) {
+        int width = (int) targetSize.width;
+        int height = (int) targetSize.height;
+
+        double[] h = new double[9];
+        transformMatrix.inv().get(0, 0, h);
+
+        float[] bufferMapX = new float[width * height];
+        float[] bufferMapY = new float[width * height];
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double w = h[6] * x + h[7] * y + h[8];
+                w = w != 0 ? 1 / w : 0;
+                bufferMapX[i] = (float) ((h[0] * x + h[1] * y + h[2]) * w);
+                bufferMapY[i] = (float) ((h[3] * x + h[4] * y + h[5]) * w);
+                i++;
+            }
+        }
+
+        Mat mapX = new Mat(height, width, CvType.CV_32FC1);
+        Mat mapY = new Mat(height, width, CvType.CV_32FC1);
+        mapX.put(0, 0, bufferMapX);
+        mapY.put(0, 0, bufferMapY);
+
+        Mat remapXY = new Mat();
+        Mat remapFraction = new Mat();
+        Imgproc.convertMaps(mapX, mapY, remapXY, remapFraction, CvType.CV_16SC2);
+        mapX.release();
+        mapY.release();
+        return new Mat[]{remapXY, remapFraction};
+    }
+
+    // Size of the board from the corner points or null if the corner points give extreme dimensions.
+    // NB: Not rounded. Output images are truncated to whole pixels.
+    public Size getBoardSize(MatOfPoint2f cornerPoints) {
 
         // Approx target corners.
         double[] tl = cornerPoints.get(0, 0);
@@ -40,41 +261,99 @@ public class PerspectiveTransformer {
         double heightLeft = Calculator.getDistanceBetweenPoints(bl, tl);
         double maxHeight = Math.max(heightRight, heightLeft);
 
-        // Ensure no extreme dimensions.
         if (hasExtremeDimensions(maxWidth, maxHeight)) {
             return null;
         }
 
+        return new Size(maxWidth, maxHeight);
+    }
+
+    // Matrix mapping the unrotated image to the cropped perspective resampled to the target size:
+    // scale * crop * perspective * rotation * region offset and scale.
+    private Mat getTransformMatrix(MatOfPoint2f cornerPoints, Size boardSize, Size targetSize, int rotationDegrees, int[] sourceGeometry) {
+
         // Create rectangle from approximated corners.
         MatOfPoint2f targetCorners = new MatOfPoint2f(
                 new Point(0, 0), // tl
-                new Point(maxWidth - 1, 0), // tr
-                new Point(maxWidth - 1, maxHeight - 1), // br
-                new Point(0, maxHeight - 1)); // bl
+                new Point(boardSize.width - 1, 0), // tr
+                new Point(boardSize.width - 1, boardSize.height - 1), // br
+                new Point(0, boardSize.height - 1)); // bl
 
         //	Get matrix for image perspective perspective
         //	Note: Target corners represents the "real"/actual dimensions of the input points i.e. actual
         //	ratio of paper.
         Mat perspectiveMatrix = Imgproc.getPerspectiveTransform(cornerPoints, targetCorners);
 
-        //	Perform perspective transformation.
-        //	Note: The given width and height are for cropping only i.e. does not affect how image is transformed.
-        Mat imgPerspective = new Mat();
+        int boardWidth = (int) boardSize.width;
+        int boardHeight = (int) boardSize.height;
+        // Maps image pixels to frame pixels, using the pixel center convention of Imgproc.resize if the region
+        // was resized.
+        double regionScaleX = (double) sourceGeometry[4] / sourceGeometry[6];
+        double regionScaleY = (double) sourceGeometry[5] / sourceGeometry[7];
+        Mat offsetMatrix = new Mat(3, 3, CvType.CV_64F);
+        offsetMatrix.put(0, 0, regionScaleX, 0, sourceGeometry[2] + 0.5 * regionScaleX - 0.5,
+                0, regionScaleY, sourceGeometry[3] + 0.5 * regionScaleY - 0.5, 0, 0, 1);
+        Mat rotationMatrix = getRotationMatrix(rotationDegrees, sourceGeometry[0], sourceGeometry[1]);
+        Mat cropMatrix = getCropMatrix(boardWidth, boardHeight, CROP_MARGIN);
+        Mat transformMatrix = multiply(cropMatrix, multiply(perspectiveMatrix, multiply(rotationMatrix, offsetMatrix)));
+
+        if (boardWidth == (int) targetSize.width && boardHeight == (int) targetSize.height) {
+            return transformMatrix;
+        }
+        return multiply(getScaleMatrix(boardWidth, boardHeight, (int) targetSize.width, (int) targetSize.height), transformMatrix);
+    }
 
-        Imgproc.warpPerspective(imgRgb, imgPerspective, perspectiveMatrix, new Size(maxWidth, maxHeight));
+    // Matrix mapping pixels of an image to pixels of the same image rotated clockwise by the given degrees
+    // (as done by Core.rotate).
+    private Mat getRotationMatrix(int rotationDegrees, int srcWidth, int srcHeight) {
+        Mat rotationMatrix = new Mat(3, 3, CvType.CV_64F);
+        switch (rotationDegrees) {
+            case 0:
+                rotationMatrix.put(0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1);
+                break;
+            case 90:
+                rotationMatrix.put(0, 0, 0, -1, srcHeight - 1, 1, 0, 0, 0, 0, 1);
+                break;
+            case 180:
+                rotationMatrix.put(0, 0, -1, 0, srcWidth - 1, 0, -1, srcHeight - 1, 0, 0, 1);
+                break;
+            case 270:
+                rotationMatrix.put(0, 0, 0, 1, 0, -1, 0, srcWidth - 1, 0, 0, 1);
+                break;
+            default:
+                throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees. Actual: " + rotationDegrees);
+        }
+        return rotationMatrix;
+    }
+
+    // Matrix cropping the top and left margin of an image and scaling the rest back to the original size.
+    // Same mapping as taking the sub image (margin, margin, width - margin, height - margin) and resizing it
+    // to (width, height), using the pixel center convention of Imgproc.resize.
+    private Mat getCropMatrix(int width, int height, int cropMargin) {
+        double scaleX = (double) width / (width - cropMargin);
+        double scaleY = (double) height / (height - cropMargin);
+        double offsetX = (0.5 - cropMargin) * scaleX - 0.5;
+        double offsetY = (0.5 - cropMargin) * scaleY - 0.5;
+
+        Mat cropMatrix = new Mat(3, 3, CvType.CV_64F);
+        cropMatrix.put(0, 0, scaleX, 0, offsetX, 0, scaleY, offsetY, 0, 0, 1);
+        return cropMatrix;
+    }
 
-        Mat croppedMat = cropAndResize(imgPerspective, CROP_MARGIN);
+    // Matrix resizing an image to a new size, using the pixel center convention of Imgproc.resize.
+    private Mat getScaleMatrix(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        double scaleX = (double) dstWidth / srcWidth;
+        double scaleY = (double) dstHeight / srcHeight;
 
-        return croppedMat;
+        Mat scaleMatrix = new Mat(3, 3, CvType.CV_64F);
+        scaleMatrix.put(0, 0, scaleX, 0, 0.5 * scaleX - 0.5, 0, scaleY, 0.5 * scaleY - 0.5, 0, 0, 1);
+        return scaleMatrix;
     }
 
-    // Crops image according to specified margin.
-    private Mat cropAndResize(Mat imgPerspective, int cropMargin) {
-        Rect cropRect = new Rect(cropMargin, cropMargin, imgPerspective.width() - cropMargin, imgPerspective.height() - cropMargin);
-        Mat croppedMat = new Mat(imgPerspective, cropRect);
-        Mat resizedMat = new Mat();
-        Imgproc.resize(croppedMat, resizedMat, new Size(imgPerspective.width(), imgPerspective.height()));
-        return resizedMat;
+    private Mat multiply(Mat matrix1, Mat matrix2) {
+        Mat product = new Mat();
+        Core.gemm(matrix1, matrix2, 1, new Mat(), 0, product);
+        return product;
     }
 
 }
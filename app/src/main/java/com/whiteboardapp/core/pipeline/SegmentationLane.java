@@ -0,0 +1,230 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import android.util.Log;
+
+import com.whiteboardapp.common.BinaryImage;
+import com.whiteboardapp.common.BinaryMorphology;
+import com.whiteboardapp.common.LatestValue;
+
+import org.opencv.core.Mat;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Runs segmentation on its own thread, always on the newest frame given, so the rest of the pipeline runs at full
+// frame rate instead of waiting for inference. Frames given while a segmentation is running replace each other.
+// As a frame stage, puts the latest segmentation mask into the frame context. A mask made for an earlier frame is
+// moved along with the presenter by MaskPropagator, with a small extra margin for each frame of age for errors of
+// the flow. A mask that cannot be moved (made for a later frame) gets a larger margin for each frame of age instead.
+// A mask that is too old, or no mask yet, masks the whole board, so nothing is committed until segmentation catches up.
+// Frames go in and masks come out through LatestValue, so neither side ever waits for the other.
+// Moving a mask (the flow at 1/8 resolution and the margin) runs on the thread calling process, i.e. the commit
+// thread, for every frame committed against an older mask, as it needs the luma of that frame, which the segmentation
+// thread never sees. Its average time is kept for reporting, see getAveragePropagationTimeMs.
+public class SegmentationLane implements FrameStage {
+
+    private static final String TAG = "SegmentationLane";
+
+    // Masks up to this many frames away from the frame are used as they are, unless moved along the flow.
+    private static final int FRESH_MASK_AGE = 2;
+    // Extra margin for each frame a mask is older than that.
+    private static final int STALE_MARGIN_PER_FRAME = 30;
+    // Extra margin for each frame a mask was moved along the flow.
+    public static final int PROPAGATED_MARGIN_PER_FRAME = 8;
+    // Masks further away than this are not used. Moving masks lets segmentation fall this far behind.
+    private static final int MAX_MASK_AGE = 12;
+
+    private static class Frame {
+        final Mat imgSegmentationRgb = new Mat();
+        long sequenceNumber = -1;
+    }
+
+    private static class Mask {
+        final BinaryImage segMask;
+        long sequenceNumber = -1;
+
+        Mask(int rows, int cols) {
+            segMask = new BinaryImage(rows, cols);
+        }
+    }
+
+    private final Segmentator segmentator;
+    private final LatestValue<Frame> frames = new LatestValue<>(new Frame(), new Frame(), new Frame());
+    private final LatestValue<Mask> masks;
+    private volatile Thread thread;
+    private volatile long failureCount = 0; // Only written by the segmentation thread.
+    private volatile long propagationTimeNanos = 0; // Only written by the frame stage.
+    private volatile long propagationCount = 0; // Only written by the frame stage.
+
+    // Mask put into the last frame context, with the margin for its age. Only touched by the frame stage.
+    private final BinaryImage appliedSegMask;
+    private final BinaryMorphology morphology = new BinaryMorphology();
+    private final MaskPropagator maskPropagator;
+    private final BinaryImage propagatedSegMask;
+    private long appliedSequenceNumber = -1;
+    private int appliedMargin = -1; // -1 if the whole board was masked.
+    private boolean wasPropagated = false;
+    private boolean hasApplied = false;
+    private boolean isAppliedMaskFresh = false;
+
+    public SegmentationLane(Segmentator segmentator, int width, int height) {
+        this.segmentator = segmentator;
+        masks = new LatestValue<>(new Mask(height, width), new Mask(height, width), new Mask(height, width));
+        appliedSegMask = new BinaryImage(height, width);
+        maskPropagator = new MaskPropagator(width, height, MAX_MASK_AGE + 1);
+        propagatedSegMask = new BinaryImage(height, width);
+    }
+
+    // Starts the segmentation thread.
+    public void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Segmentation lane is already started");
+        }
+        thread = new Thread(this::runLoop, "CaptureSegmentation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops the segmentation thread, waiting for a segmentation in progress to finish.
+    public void shutdown() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        boolean isInterrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Gives the lane a frame to segment. The image is copied, so the caller keeps it. Never waits.
+    // Must always be called from the same thread.
+    public void submit(long sequenceNumber, Mat imgSegmentationRgb) {
+        Frame frame = frames.getWritable();
+        imgSegmentationRgb.copyTo(frame.imgSegmentationRgb);
+        frame.sequenceNumber = sequenceNumber;
+        frames.publish();
+        LockSupport.unpark(thread);
+    }
+
+    // Puts the latest mask, with the margin for its age, into the context and marks the tiles where it changed.
+    // Must always be called from the same thread.
+    @Override
+    public void process(FrameContext context) {
+        long sequenceNumber = context.getSequenceNumber();
+        maskPropagator.addFrame(sequenceNumber, context.getGray());
+        masks.update();
+        Mask mask = masks.getReadable();
+        long age = Math.abs(sequenceNumber - mask.sequenceNumber);
+        isAppliedMaskFresh = mask.sequenceNumber >= 0 && age <= FRESH_MASK_AGE;
+
+        BinaryImage segMask = context.getSegMask();
+        if (mask.sequenceNumber >= 0 && age > 0 && age <= MAX_MASK_AGE
+                && maskPropagator.canPropagate(mask.sequenceNumber, sequenceNumber)) {
+            // Moves with the presenter, so differs from frame to frame.
+            long startTime = System.nanoTime();
+            int margin = (int) age * PROPAGATED_MARGIN_PER_FRAME;
+            maskPropagator.propagate(mask.segMask, mask.sequenceNumber, sequenceNumber, propagatedSegMask);
+            morphology.dilateDisk(propagatedSegMask, segMask, margin);
+            propagationTimeNanos += System.nanoTime() - startTime;
+            propagationCount++;
+            apply(context, mask.sequenceNumber, margin, true);
+            return;
+        }
+
+        int margin;
+        if (mask.sequenceNumber < 0 || age > MAX_MASK_AGE) {
+            margin = -1;
+            Log.d(TAG, "process: No mask within " + MAX_MASK_AGE + " frames of frame " + sequenceNumber
+                    + ", whole board masked.");
+        } else if (age > FRESH_MASK_AGE) {
+            margin = (int) (age - FRESH_MASK_AGE) * STALE_MARGIN_PER_FRAME;
+        } else {
+            margin = 0;
+        }
+
+        if (hasApplied && !wasPropagated && mask.sequenceNumber == appliedSequenceNumber && margin == appliedMargin) {
+            // Same mask as the last frame.
+            appliedSegMask.copyTo(segMask);
+            for (int tileRow = 0; tileRow < context.getTileRows(); tileRow++) {
+                for (int tileColumn = 0; tileColumn < context.getTileColumns(); tileColumn++) {
+                    context.setSegMaskTileDirty(tileRow, tileColumn, false);
+                }
+            }
+            return;
+        }
+
+        if (margin < 0) {
+            segMask.fill(true);
+        } else if (margin == 0) {
+            mask.segMask.copyTo(segMask);
+        } else {
+            morphology.dilateDisk(mask.segMask, segMask, margin);
+        }
+        apply(context, mask.sequenceNumber, margin, false);
+    }
+
+    // Checks if the mask put into the last frame context was made for a frame at most FRESH_MASK_AGE frames away.
+    // Stale masks and the whole board masked are not fresh. Only valid on the thread calling process.
+    public boolean isAppliedMaskFresh() {
+        return isAppliedMaskFresh;
+    }
+
+    // Average time in ms spent moving a mask and adding its margin, for each frame committed against a moved mask.
+    // Approximate when called from another thread than the one calling process.
+    public double getAveragePropagationTimeMs() {
+        long count = propagationCount;
+        return count == 0 ? 0 : propagationTimeNanos / 1e6 / count;
+    }
+
+    // Number of frames the segmentation failed on. No mask is made for them, so frames go on being committed against
+    // the last mask, until it is too old and the whole board is masked. Safe to call from any thread.
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    // Marks the tiles where the mask put into the context differs from the last one, and keeps it.
+    private void apply(FrameContext context, long sequenceNumber, int margin, boolean isPropagated) {
+        BinaryImage segMask = context.getSegMask();
+        if (hasApplied) {
+            context.setSegMaskTilesDirty(appliedSegMask);
+        }
+        segMask.copyTo(appliedSegMask);
+        appliedSequenceNumber = sequenceNumber;
+        appliedMargin = margin;
+        wasPropagated = isPropagated;
+        hasApplied = true;
+    }
+
+    // Segments the newest frame whenever there is one, until interrupted.
+    // A frame the segmentation fails on is logged and skipped, so one bad frame does not stop the lane.
+    private void runLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            if (!frames.update()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            Frame frame = frames.getReadable();
+            Mask mask = masks.getWritable();
+            try {
+                segmentator.segmentate(frame.imgSegmentationRgb, mask.segMask);
+            } catch (RuntimeException e) {
+                failureCount++;
+                Log.e(TAG, "runLoop: Segmentation of frame " + frame.sequenceNumber + " failed, "
+                        + failureCount + " failures so far.", e);
+                continue;
+            }
+            mask.sequenceNumber = frame.sequenceNumber;
+            masks.publish();
+        }
+        Log.d(TAG, "runLoop: Segmentation lane stopped.");
+    }
+}
@@ -0,0 +1,51 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import android.content.Context;
+
+import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.task.vision.segmenter.ImageSegmenter;
+import org.tensorflow.lite.task.vision.segmenter.Segmentation;
+
+import java.io.Closeable;
+import java.util.List;
+
+// The DeepLab segmentation model, loaded once for a capture session and shared by the frames of it.
+// createFromFile memory-maps the model file straight from the (uncompressed) assets, so it is neither copied nor
+// read up front.
+// The interpreter holds native memory and threads, so it must be closed when the session ends.
+public class SegmentationModel implements Closeable {
+
+    public static final String MODEL_NAME = "deeplabv3_257_mv_gpu.tflite";
+
+    private ImageSegmenter imageSegmenter;
+
+    public SegmentationModel(Context context) {
+        try {
+            imageSegmenter = ImageSegmenter.createFromFile(context, MODEL_NAME);
+        } catch (Exception exception) {
+            throw new RuntimeException("Exception occurred while loading model from file", exception);
+        }
+    }
+
+    // Runs the model on the image. Calls from several threads run one at a time.
+    public synchronized List<Segmentation> segment(TensorImage image) {
+        if (imageSegmenter == null) {
+            throw new IllegalStateException("Segmentation model is closed");
+        }
+        return imageSegmenter.segment(image);
+    }
+
+    public synchronized boolean isClosed() {
+        return imageSegmenter == null;
+    }
+
+    // Releases the interpreter. Waits for a segmentation in progress to finish. Closing twice does nothing.
+    @Override
+    public synchronized void close() {
+        if (imageSegmenter != null) {
+            imageSegmenter.close();
+            imageSegmenter = null;
+        }
+    }
+}
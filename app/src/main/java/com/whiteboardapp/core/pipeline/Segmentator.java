@@ -3,136 +3,194 @@ package com.whiteboardapp.core.pipeline;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Color;
-import android.os.SystemClock;
 import android.util.Log;
 
-import com.whiteboardapp.common.AppUtils;
+import com.whiteboardapp.common.BinaryImage;
+import com.whiteboardapp.common.BinaryMorphology;
+import com.whiteboardapp.common.PixelBuffer;
 
-import org.checkerframework.checker.formatter.FormatUtil;
 import org.opencv.android.Utils;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Point;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.task.vision.segmenter.ColoredLabel;
 import org.tensorflow.lite.task.vision.segmenter.Segmentation;
-import org.tensorflow.lite.task.vision.segmenter.ImageSegmenter;
 
-import java.security.InvalidKeyException;
-import java.util.ArrayList;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 // Segmentation using DeepLab model.
-public class Segmentator {
+public class Segmentator implements FrameStage, Closeable {
+    // Input size of the DeepLab model. Larger images are scaled down by the segmenter anyway.
+    public static final Size MODEL_INPUT_SIZE = new Size(257, 257);
+
     public final String TAG = "SegmentationTask";
-    private final int NUM_THREADS = 4;
-    private final String SEGMENTATION_MODEL_NAME = "deeplabv3_257_mv_gpu.tflite";
-    private final int ALPHA_VALUE = 128;
 
-    private ImageSegmenter imageSegmenter;
-    private TensorImage maskTensor;
-    private int[] pixelsGlobal;
+    // Class of people in the labels of the model (PASCAL VOC).
+    public static final int PERSON_CLASS_ID = 15;
+
+    // Margin added around segmented objects, so their edges and shadows are not taken as changes.
+    // About the reach of the 11 iterations with a 20x20 ellipse used before.
+    public static final int DILATION_RADIUS = 105;
+
+    // The margin is added at a fraction of the board resolution and the mask scaled up afterwards.
+    // Coarser than the board, but still finer than the model output for boards from 1028 pixels wide.
+    public static final int DILATION_SCALE = 4;
+
+    private final SegmentationModel segmentationModel;
+    private final boolean isModelOwned;
+
+    // Maps a label of the model to 255 if the class occludes the board, otherwise to 0.
+    private final byte[] occluderTable = new byte[256];
+
+    // Bitmap the board is handed to the model in, reused between frames.
+    private Bitmap bitmapRgb;
 
+    // Intermediate images of the segmentation map, reused between frames.
+    private PixelBuffer segMapBinary;
+    private PixelBuffer segMapScaled;
+    private BinaryImage segMaskScaled;
+    private final BinaryMorphology morphology = new BinaryMorphology();
+
+    // Segmentation mask of the previous frame, to find the tiles where the mask changed.
+    private BinaryImage previousSegMask;
+
+    // Loads a model of its own, released by close.
     public Segmentator(Context context) {
-        try {
-            imageSegmenter = ImageSegmenter.createFromFile(context, SEGMENTATION_MODEL_NAME);
-        } catch (Exception exception) {
-            throw new RuntimeException("Exception occurred while loading model from file", exception);
+        this(new SegmentationModel(context), true);
+    }
+
+    // Uses a model loaded for the session. The model is released by whoever loaded it.
+    public Segmentator(SegmentationModel segmentationModel) {
+        this(segmentationModel, false);
+    }
+
+    private Segmentator(SegmentationModel segmentationModel, boolean isModelOwned) {
+        this.segmentationModel = segmentationModel;
+        this.isModelOwned = isModelOwned;
+        setOccluderClasses(PERSON_CLASS_ID);
+    }
+
+    // Sets the classes of the model that are masked out of the board. Only people by default.
+    public void setOccluderClasses(int... classIds) {
+        byte[] table = new byte[occluderTable.length];
+        for (int classId : classIds) {
+            if (classId < 0 || classId >= table.length) {
+                throw new IllegalArgumentException("Class id must be in [0, " + table.length + "), was " + classId);
+            }
+            table[classId] = (byte) 255;
+        }
+        System.arraycopy(table, 0, occluderTable, 0, table.length);
+    }
+
+    // Releases the model if the segmentator loaded it itself.
+    @Override
+    public void close() {
+        if (isModelOwned) {
+            segmentationModel.close();
+        }
+    }
+
+    // Segments the board at model input size into the bit-packed segmentation mask of the context.
+    @Override
+    public void process(FrameContext context) {
+        segmentate(context.getSegmentationRgb(), context.getSegMask());
+        markChangedTiles(context);
+    }
+
+    // Segments the board in RGB at model input size into a bit-packed segmentation mask.
+    public void segmentate(Mat imgSegmentationRgb, BinaryImage segMask) {
+        if (bitmapRgb == null || bitmapRgb.getWidth() != imgSegmentationRgb.cols() || bitmapRgb.getHeight() != imgSegmentationRgb.rows()) {
+            bitmapRgb = Bitmap.createBitmap(imgSegmentationRgb.cols(), imgSegmentationRgb.rows(), Bitmap.Config.ARGB_8888);
+        }
+        Utils.matToBitmap(imgSegmentationRgb, bitmapRgb);
+        segmentate(bitmapRgb, segMask);
+    }
+
+    // Marks the tiles where the mask is the same as in the previous frame as clean.
+    // All tiles stay dirty on the first frame.
+    private void markChangedTiles(FrameContext context) {
+        BinaryImage segMask = context.getSegMask();
+        if (previousSegMask == null || previousSegMask.rows() != segMask.rows() || previousSegMask.cols() != segMask.cols()) {
+            previousSegMask = new BinaryImage(segMask.rows(), segMask.cols());
+        } else {
+            context.setSegMaskTilesDirty(previousSegMask);
         }
+        segMask.copyTo(previousSegMask);
     }
 
     // Performs segmentation of the given image. 
     // Returns a Mat representing the resulting segmentation map 
     public Mat segmentate(Bitmap image) {
+        return segmentate(image, image.getWidth(), image.getHeight());
+    }
+
+    // Performs segmentation of the given image, which may be smaller than the image the map is for
+    // (e.g. already at model input size). Returns a segmentation map of the given width and height.
+    public Mat segmentate(Bitmap image, int width, int height) {
+        BinaryImage segMask = new BinaryImage(height, width);
+        segmentate(image, segMask);
+
+        PixelBuffer imgSegMap = new PixelBuffer(height, width);
+        segMask.unpack(imgSegMap.getPixels());
+        // Copied, as the returned mat must not depend on the pixel buffer staying alive.
+        return imgSegMap.getMat().clone();
+    }
+
+    // Performs segmentation of the given image into a segmentation mask of the size of segMask.
+    private void segmentate(Bitmap image, BinaryImage segMask) {
         long fullTimeExecutionTime = System.currentTimeMillis();
-        ;
 
         // Do segmentation
         long imageSegmentationTime = System.currentTimeMillis();
-        ;
         TensorImage tensorImage = TensorImage.fromBitmap(image);
-        List<Segmentation> results = imageSegmenter.segment(tensorImage);
+        List<Segmentation> results = segmentationModel.segment(tensorImage);
         imageSegmentationTime = System.currentTimeMillis() - imageSegmentationTime;
         Log.i(TAG, "Time to run the segmentation model: " + imageSegmentationTime + " ms");
 
-        // Resize seg map to input image size.
-        Bitmap maskBitmap = createMaskBitmapAndLabels(
-                results.get(0), image.getWidth(),
-                image.getHeight()
-        );
-
-        Mat imgSegMap = createImgSegMap(maskBitmap, image.getWidth(), image.getHeight());
+        createImgSegMap(results.get(0), segMask);
 
         fullTimeExecutionTime = System.currentTimeMillis() - fullTimeExecutionTime;
         Log.i(TAG, "Total time in segmentation step: " + fullTimeExecutionTime + " ms");
-        return imgSegMap;
     }
 
-    // Method converted from Tensorflow Kotlin tutorial:
-    // https://github.com/tensorflow/examples/tree/master/lite/examples/image_segmentation/android/lib_task_api/src/main/java/org/tensorflow/lite/examples/imagesegmentation/tflite
-    private Bitmap createMaskBitmapAndLabels(Segmentation segmentation, int width, int height) {
-        List<ColoredLabel> coloredLabels = segmentation.getColoredLabels();
-        ArrayList<Integer> colors = new ArrayList<>();
-        for (ColoredLabel coloredLabel : coloredLabels) {
-            int rgb = coloredLabel.getArgb();
-            // Create color setting alpha value (transparency) to 128 as the mask will be displayed on top of original image.
-            colors.add(Color.argb(ALPHA_VALUE, Color.red(rgb), Color.green(rgb), Color.blue(rgb)));
-        }
-        // Use completely transparent for the background color.
-        colors.set(0, Color.TRANSPARENT);
-
-        // Create the mask bitmap with colors and the set of detected labels.
-        maskTensor = segmentation.getMasks().get(0);
-        byte[] maskArray = maskTensor.getBuffer().array();
-        int[] pixels = new int[maskArray.length];
-        for (int i = 0; i < maskArray.length; i++) {
-            int color = colors.get(maskArray[i]);
-            pixels[i] = color;
-        }
-
-        // Scale the maskBitmap to the same size as the input image.
-        Bitmap maskBitmap = Bitmap.createBitmap(
-                pixels, maskTensor.getWidth(), maskTensor.getHeight(),
-                Bitmap.Config.ARGB_8888
-        );
-        // XXX: Scaling her??
-        return maskBitmap;
-
+    private void createImgSegMap(Segmentation segmentation, BinaryImage segMask) {
+        TensorImage maskTensor = segmentation.getMasks().get(0);
+        createSegMask(maskTensor.getBuffer(), maskTensor.getHeight(), maskTensor.getWidth(), segMask);
     }
 
-    private Mat createImgSegMap(Bitmap maskBitmap, int width, int height) {
-
-        // Create segmap
-        Mat segMapBgr = new Mat();
-        Utils.bitmapToMat(maskBitmap, segMapBgr);
-
-        Mat segMapGrey = new Mat();
-        Imgproc.cvtColor(segMapBgr, segMapGrey, Imgproc.COLOR_BGR2GRAY);
-
-        Mat segMapBinary = new Mat(segMapGrey.rows(), segMapGrey.cols(), CvType.CV_8U);
-
-        byte[] bufferSegGray = AppUtils.getBuffer(segMapGrey);
-        byte[] bufferSegBinary = AppUtils.getBuffer(segMapBinary);
+    // Makes the segmentation mask from a label mask of the model, row-major without padding, with the margin added.
+    // Labels are mapped through the occluder table in the copy out of the label mask: occluders are 255, everything else 0.
+    public void createSegMask(ByteBuffer labels, int labelRows, int labelCols, BinaryImage segMask) {
+        if (segMapBinary == null || segMapBinary.rows() != labelRows || segMapBinary.cols() != labelCols) {
+            segMapBinary = new PixelBuffer(labelRows, labelCols);
+        }
+        if (labels.capacity() != segMapBinary.size()) {
+            throw new IllegalStateException("Label mask has " + labels.capacity() + " labels for a "
+                    + labelCols + "x" + labelRows + " mask");
+        }
 
-        for (int i = 0; i < bufferSegGray.length; i++) {
-            if (bufferSegGray[i] == 68) {
-                bufferSegBinary[i] = -1;
-            } else {
-                bufferSegBinary[i] = 0;
+        ByteBuffer bufferSegBinary = segMapBinary.getPixels();
+        for (int i = 0; i < segMapBinary.size(); i++) {
+            bufferSegBinary.put(i, occluderTable[labels.get(i) & 0xFF]);
+        }
 
-            }
+        int scaledRows = (segMask.rows() + DILATION_SCALE - 1) / DILATION_SCALE;
+        int scaledCols = (segMask.cols() + DILATION_SCALE - 1) / DILATION_SCALE;
+        if (segMaskScaled == null || segMaskScaled.rows() != scaledRows || segMaskScaled.cols() != scaledCols) {
+            segMapScaled = new PixelBuffer(scaledRows, scaledCols);
+            segMaskScaled = new BinaryImage(scaledRows, scaledCols);
         }
-        segMapBinary.put(0, 0, bufferSegBinary);
 
-        Imgproc.resize(segMapBinary, segMapBinary, new Size(width, height));
-        Mat kernel = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_ELLIPSE, new Size(20, 20));
-        Mat imgSegMapDilated = new Mat();
-        Imgproc.dilate(segMapBinary, imgSegMapDilated, kernel, new Point(-1, -1), 11);
+        // Any part of an occluder in a pixel marks it, so thin occluders are not lost when the mask is scaled down.
+        Imgproc.resize(segMapBinary.getMat(), segMapScaled.getMat(), segMapScaled.getMat().size(), 0, 0, Imgproc.INTER_AREA);
+        Imgproc.threshold(segMapScaled.getMat(), segMapScaled.getMat(), 0, 255, Imgproc.THRESH_BINARY);
+        segMaskScaled.pack(segMapScaled.getPixels());
 
-        return imgSegMapDilated;
+        // The radius is rounded up, the blocks of the scaled up mask only add to the margin.
+        morphology.dilateDisk(segMaskScaled, segMaskScaled, (DILATION_RADIUS + DILATION_SCALE - 1) / DILATION_SCALE);
+        segMaskScaled.scaleUp(segMask, DILATION_SCALE);
     }
 
 }
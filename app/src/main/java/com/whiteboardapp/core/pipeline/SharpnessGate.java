@@ -0,0 +1,84 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Rejects motion blurred frames (phone bumped, presenter walking past) before they reach the pipeline.
+// Sharpness is measured as the variance of the Laplacian of a downscaled board image and compared
+// with a rolling baseline of recent sharp frames, since the absolute value depends on the board content.
+// The counters may be read from another thread than the one running the gate.
+public class SharpnessGate {
+
+    private static final int ANALYSIS_WIDTH = 320;
+
+    // Frames used to build the baseline before any frame is rejected.
+    private static final int WARM_UP_FRAMES = 5;
+
+    // A frame is blurred if its sharpness falls below this fraction of the baseline.
+    private static final double MIN_SHARPNESS_RATIO = 0.5;
+
+    // Smoothing factor for the baseline.
+    private static final double BASELINE_SMOOTHING = 0.1;
+
+    // After this many rejections in a row the scene is assumed to have changed for good (e.g. board erased),
+    // and the baseline is restarted from the current frame.
+    private static final int MAX_CONSECUTIVE_REJECTIONS = 10;
+
+    private final Mat imgSmall = new Mat();
+    private final Mat imgLaplacian = new Mat();
+    private final MatOfDouble mean = new MatOfDouble();
+    private final MatOfDouble stdDev = new MatOfDouble();
+
+    private double baseline = 0;
+    private int consecutiveRejections = 0;
+
+    private long frameCount = 0;
+    private long rejectedCount = 0;
+
+    // Returns true if the frame is too blurred to be used.
+    public synchronized boolean isBlurred(Mat imgGray) {
+        frameCount++;
+        double sharpness = getSharpness(imgGray);
+
+        if (frameCount > WARM_UP_FRAMES && sharpness < baseline * MIN_SHARPNESS_RATIO) {
+            consecutiveRejections++;
+            if (consecutiveRejections < MAX_CONSECUTIVE_REJECTIONS) {
+                rejectedCount++;
+                return true;
+            }
+            baseline = sharpness;
+        }
+
+        consecutiveRejections = 0;
+        baseline = frameCount == 1 ? sharpness : baseline + BASELINE_SMOOTHING * (sharpness - baseline);
+        return false;
+    }
+
+    // Variance of the Laplacian.
+    private double getSharpness(Mat imgGray) {
+        double scale = Math.min(1.0, (double) ANALYSIS_WIDTH / imgGray.width());
+        Imgproc.resize(imgGray, imgSmall, new Size(), scale, scale, Imgproc.INTER_AREA);
+        Imgproc.Laplacian(imgSmall, imgLaplacian, CvType.CV_16S);
+        Core.meanStdDev(imgLaplacian, mean, stdDev);
+
+        double sd = stdDev.get(0, 0)[0];
+        return sd * sd;
+    }
+
+    public synchronized double getBaseline() {
+        return baseline;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+}
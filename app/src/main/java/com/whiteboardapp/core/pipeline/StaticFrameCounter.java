@@ -0,0 +1,48 @@
+package com.whiteboardapp.core.pipeline;
+
+
+// Counts the unchanged frames after a change of the board and decides when the pipeline has seen enough of them
+// to be skipped, for StaticSceneGate.
+// Unchanged frames only settle the board once they are committed against a fresh segmentation mask. A stale mask,
+// or no mask before the first segmentation, hides parts of the board, e.g. ink behind a presenter who has walked
+// away, and skipping the frames after it would keep those parts out of the model until the board changes again.
+// Frames are counted on the thread running the gate, commits are recorded on the commit thread.
+public class StaticFrameCounter {
+
+    private final int minStaticFrames;
+
+    private int staticFrameCount = 0;
+    private long changeSequenceNumber = -1; // Sequence number of the last frame that changed the board.
+    private int freshCommitCount = 0; // Commits in a row with a fresh mask since that frame.
+
+    // Takes the number of frames a change must be seen in before it is committed.
+    public StaticFrameCounter(int minStaticFrames) {
+        if (minStaticFrames < 1) {
+            throw new IllegalArgumentException("Minimum static frames must be positive, was " + minStaticFrames);
+        }
+        this.minStaticFrames = minStaticFrames;
+    }
+
+    // Counts a frame and returns true if the pipeline can be skipped for it. The frame gets the given sequence
+    // number if it runs through the pipeline.
+    public synchronized boolean countFrame(boolean isUnchanged, long sequenceNumber) {
+        if (!isUnchanged) {
+            staticFrameCount = 0;
+            changeSequenceNumber = sequenceNumber;
+            freshCommitCount = 0;
+            return false;
+        }
+
+        staticFrameCount++;
+        return staticFrameCount >= minStaticFrames && freshCommitCount >= minStaticFrames;
+    }
+
+    // Records that a frame that ran through the pipeline was committed, and if its segmentation mask was fresh.
+    // Frames from before the last change do not count.
+    public synchronized void recordCommit(long sequenceNumber, boolean isMaskFresh) {
+        if (sequenceNumber < changeSequenceNumber) {
+            return;
+        }
+        freshCommitCount = isMaskFresh ? freshCommitCount + 1 : 0;
+    }
+}
@@ -0,0 +1,100 @@
+package com.whiteboardapp.core.pipeline;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Detects frames where nothing has changed on the board, so the pipeline can be skipped for them.
+// The board is compared on a tiny downsampled luma thumbnail, which costs a fraction of a millisecond.
+// Only skips once the frames after the last change were committed against a fresh segmentation mask, see
+// StaticFrameCounter. Also keeps track of how often the gate hits and how much pipeline time that saves.
+// Commits and pipeline times may be recorded from another thread than the one running the gate.
+public class StaticSceneGate {
+
+    // Size of the thumbnails compared.
+    public static final Size THUMBNAIL_SIZE = new Size(64, 48);
+
+    // Largest luma difference of a thumbnail cell that still counts as unchanged.
+    // Sensor noise is averaged out in the thumbnail, while a new stroke changes its cell by far more.
+    private static final double MAX_CELL_DIFF = 6;
+
+    // Changes are only committed once seen in a number of frames (two by default), so the first unchanged frames
+    // after a change still have to run through the pipeline.
+    private final StaticFrameCounter staticFrameCounter;
+
+    private final Mat thumbnail = new Mat();
+    private final Mat thumbnailDiff = new Mat();
+    private Mat referenceThumbnail;
+
+    private long frameCount = 0;
+    private long hitCount = 0;
+    private long pipelineTimeMs = 0;
+    private long pipelineRuns = 0;
+
+    public StaticSceneGate() {
+        this(ChangePersistence.DEFAULT_COMMIT_THRESHOLD);
+    }
+
+    // Takes the number of frames a change must be seen in before it is committed.
+    public StaticSceneGate(int minStaticFrames) {
+        staticFrameCounter = new StaticFrameCounter(minStaticFrames);
+    }
+
+    // Returns true if the board is unchanged and the pipeline can be skipped for this frame.
+    // The frame gets the given sequence number if it runs through the pipeline.
+    // Frames are compared with the last frame that ran through the pipeline, so slow changes add up until noticed.
+    // Takes the board after the perspective transform, so nothing outside the board keeps the gate from skipping.
+    public synchronized boolean isStatic(Mat imgGray, long sequenceNumber) {
+        Imgproc.resize(imgGray, thumbnail, THUMBNAIL_SIZE, 0, 0, Imgproc.INTER_AREA);
+        frameCount++;
+
+        if (referenceThumbnail == null) {
+            referenceThumbnail = new Mat();
+            thumbnail.copyTo(referenceThumbnail);
+            staticFrameCounter.countFrame(false, sequenceNumber);
+            return false;
+        }
+
+        Core.absdiff(thumbnail, referenceThumbnail, thumbnailDiff);
+        boolean isUnchanged = Core.minMaxLoc(thumbnailDiff).maxVal <= MAX_CELL_DIFF;
+
+        if (staticFrameCounter.countFrame(isUnchanged, sequenceNumber)) {
+            hitCount++;
+            return true;
+        }
+
+        thumbnail.copyTo(referenceThumbnail);
+        return false;
+    }
+
+    // Records that a frame that passed the gate was committed, and if its segmentation mask was fresh.
+    public void recordCommit(long sequenceNumber, boolean isMaskFresh) {
+        staticFrameCounter.recordCommit(sequenceNumber, isMaskFresh);
+    }
+
+    // Records how long a frame that passed the gate took in the pipeline. Used to estimate the time saved.
+    public synchronized void recordPipelineTime(long timeMs) {
+        pipelineTimeMs += timeMs;
+        pipelineRuns++;
+    }
+
+    // Fraction of frames where the pipeline was skipped.
+    public synchronized double getHitRate() {
+        return frameCount == 0 ? 0 : (double) hitCount / frameCount;
+    }
+
+    // Estimated pipeline time saved by skipped frames, based on the average time of the frames that ran.
+    public synchronized long getTimeSavedMs() {
+        return pipelineRuns == 0 ? 0 : hitCount * pipelineTimeMs / pipelineRuns;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+}
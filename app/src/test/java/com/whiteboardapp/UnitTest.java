@@ -7,7 +7,15 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import com.whiteboardapp.common.BinaryImage;
+import com.whiteboardapp.common.BinaryMorphology;
+import com.whiteboardapp.common.LatestValue;
+import com.whiteboardapp.common.SpscQueue;
+import com.whiteboardapp.controller.Nv21Packer;
+import com.whiteboardapp.core.pipeline.ChangePersistence;
+import com.whiteboardapp.core.pipeline.ChangeRegionExtractor;
 import com.whiteboardapp.core.pipeline.CornerDetector;
+import com.whiteboardapp.core.pipeline.StaticFrameCounter;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -16,9 +24,14 @@ import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 
@@ -59,6 +72,381 @@ public class UnitTest {
 //        Assert.assertArrayEquals(actualCorners.toArray(), expectedCorners.toArray());
     }
 
+    @Test
+    public void nv21Packer_handlesAllPlaneLayouts() {
+        int width = 8;
+        int height = 4;
+
+        // Arrange
+        byte[] expected = new byte[width * height * 3 / 2];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+        }
+        Nv21Packer packer = new Nv21Packer();
+
+        // Act & Assert
+        // Planar (I420 like) planes with padded rows.
+        Assert.assertArrayEquals(expected, packPlanes(packer, expected, width, height, width + 4, 1, false));
+        // Semi-planar planes that are separate buffers.
+        Assert.assertArrayEquals(expected, packPlanes(packer, expected, width, height, width + 2, 2, false));
+        // Semi-planar planes sharing the same VUVU... memory.
+        Assert.assertArrayEquals(expected, packPlanes(packer, expected, width, height, width, 2, true));
+        Assert.assertArrayEquals(expected, packPlanes(packer, expected, width, height, width + 6, 2, true));
+    }
+
+    @Test
+    public void spscQueue_keepsOrderAcrossThreads() throws InterruptedException {
+        // Arrange
+        int itemCount = 10000;
+        SpscQueue<Integer> queue = new SpscQueue<>(2);
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < itemCount; i++) {
+                    queue.put(i);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            queue.close();
+        });
+
+        // Act
+        producer.start();
+        int expected = 0;
+        Integer item;
+        while ((item = queue.take()) != null) {
+            // Assert
+            assertEquals(expected++, (int) item);
+        }
+        producer.join();
+
+        assertEquals(itemCount, expected);
+        Assert.assertFalse(queue.offer(0) && queue.offer(1) && queue.offer(2)); // Bounded
+    }
+
+    @Test
+    public void latestValue_handsOverNewerValuesAcrossThreads() throws InterruptedException {
+        // Arrange
+        int valueCount = 100000;
+        LatestValue<int[]> latest = new LatestValue<>(new int[2], new int[2], new int[2]);
+        Thread producer = new Thread(() -> {
+            for (int i = 1; i <= valueCount; i++) {
+                // Two fields, so a value changed while being read would show.
+                int[] value = latest.getWritable();
+                value[0] = i;
+                value[1] = -i;
+                latest.publish();
+            }
+        });
+
+        // Act
+        producer.start();
+        int previous = 0;
+        int updates = 0;
+        while (previous < valueCount) {
+            if (latest.update()) {
+                int[] value = latest.getReadable();
+
+                // Assert
+                Assert.assertTrue(value[0] > previous);
+                assertEquals(-value[0], value[1]);
+                previous = value[0];
+                updates++;
+            }
+        }
+        producer.join();
+
+        Assert.assertFalse(latest.update()); // Nothing new after the last value.
+        Assert.assertTrue(updates <= valueCount);
+    }
+
+    @Test
+    public void binaryImage_packAndUnpackRoundTrip() {
+        // Widths around the 8 pixel and 64 pixel boundaries of the packing.
+        for (int cols : new int[]{1, 7, 8, 63, 64, 65, 130}) {
+            int rows = 3;
+
+            // Arrange
+            ByteBuffer pixels = ByteBuffer.allocate(rows * cols);
+            for (int i = 0; i < rows * cols; i++) {
+                pixels.put(i, (i * 7 + i / 3) % 5 < 2 ? (byte) 255 : 0);
+            }
+            BinaryImage image = new BinaryImage(rows, cols);
+            image.fill(true);
+
+            // Act
+            image.pack(pixels);
+            ByteBuffer unpacked = ByteBuffer.allocate(rows * cols);
+            image.unpack(unpacked);
+
+            // Assert
+            for (int i = 0; i < rows * cols; i++) {
+                assertEquals(pixels.get(i) != 0, image.get(i / cols, i % cols));
+            }
+            Assert.assertArrayEquals(pixels.array(), unpacked.array());
+            for (int i = 0; i < image.getWords().length; i++) {
+                // Bits past the last column stay 0.
+                assertEquals(0, image.getWords()[i] & ~image.getColumnMask(i % image.getWordsPerRow()));
+            }
+
+            // Unpacking a region only writes the pixels of its rows and words.
+            if (image.getWordsPerRow() > 1) {
+                ByteBuffer region = ByteBuffer.allocate(rows * cols);
+                image.unpack(region, 1, 2, 1, 2);
+                for (int i = 0; i < rows * cols; i++) {
+                    boolean isInRegion = i / cols == 1 && i % cols >= 64;
+                    assertEquals(isInRegion ? pixels.get(i) : 0, region.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void binaryImage_scaleUpRepeatsPixels() {
+        // Blocks straddling words, and scaled images cut short of the full blocks.
+        int[][] sizes = {{5, 33, 4, 130, 4}, {3, 20, 3, 60, 3}, {2, 3, 7, 20, 7}, {1, 2, 64, 100, 64}};
+        for (int[] size : sizes) {
+            int rows = size[0];
+            int cols = size[1];
+            int factor = size[2];
+            int dstCols = size[3];
+            int dstRows = rows * factor - size[4] + 1;
+
+            // Arrange
+            BinaryImage image = new BinaryImage(rows, cols);
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    image.set(row, col, (row * 5 + col * 3) % 4 < 2);
+                }
+            }
+            BinaryImage scaled = new BinaryImage(dstRows, dstCols);
+            scaled.fill(true);
+
+            // Act
+            image.scaleUp(scaled, factor);
+
+            // Assert
+            for (int row = 0; row < dstRows; row++) {
+                for (int col = 0; col < dstCols; col++) {
+                    assertEquals(image.get(row / factor, col / factor), scaled.get(row, col));
+                }
+            }
+            for (int i = 0; i < scaled.getWords().length; i++) {
+                // Bits past the last column stay 0.
+                assertEquals(0, scaled.getWords()[i] & ~scaled.getColumnMask(i % scaled.getWordsPerRow()));
+            }
+        }
+    }
+
+    @Test
+    public void binaryMorphology_matchesPerPixelDefinition() {
+        // Arrange
+        int rows = 37;
+        int cols = 150; // Three words per row, the last one partly used.
+        BinaryImage src = new BinaryImage(rows, cols);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                src.set(row, col, (row * 31 + col * 17 + row * col) % 11 < 3);
+            }
+        }
+        BinaryImage dst = new BinaryImage(rows, cols);
+        BinaryMorphology morphology = new BinaryMorphology();
+
+        // Act & Assert
+        // Odd and even kernel sizes, the latter with the anchor off center like in OpenCV.
+        int[][] kernelSizes = {{1, 1}, {3, 3}, {4, 2}, {1, 7}, {20, 20}, {71, 5}};
+        for (int[] kernelSize : kernelSizes) {
+            morphology.dilateRect(src, dst, kernelSize[0], kernelSize[1]);
+            assertMorphology(src, dst, kernelSize[0], kernelSize[1], true);
+            morphology.erodeRect(src, dst, kernelSize[0], kernelSize[1]);
+            assertMorphology(src, dst, kernelSize[0], kernelSize[1], false);
+        }
+
+        morphology.majority3x3(src, dst);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int count = 0;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        // Replicated border
+                        int y = Math.min(Math.max(row + dy, 0), rows - 1);
+                        int x = Math.min(Math.max(col + dx, 0), cols - 1);
+                        count += src.get(y, x) ? 1 : 0;
+                    }
+                }
+                assertEquals(count >= 5, dst.get(row, col));
+            }
+        }
+
+        // The disk reaches as far along the axes and diagonals (within a pixel) as its radius.
+        BinaryImage point = new BinaryImage(rows, cols);
+        point.set(18, 75, true);
+        morphology.dilateDisk(point, dst, 10);
+        Assert.assertTrue(dst.get(18, 85) && dst.get(18, 65) && dst.get(8, 75) && dst.get(28, 75));
+        Assert.assertFalse(dst.get(18, 86) || dst.get(18, 64) || dst.get(7, 75) || dst.get(29, 75));
+        Assert.assertTrue(dst.get(25, 82) && dst.get(11, 68));
+        Assert.assertFalse(dst.get(27, 84) || dst.get(9, 66));
+    }
+
+    @Test
+    public void changePersistence_commitsAfterEnoughFrames() {
+        // Arrange
+        // Pixel 0 is changed in every frame, pixel 1 drops out in the middle frame.
+        long[] frames = {0b11, 0b11, 0b01, 0b11, 0b11};
+        ChangePersistence twoInARow = new ChangePersistence(1, 64);
+        ChangePersistence threeInARow = new ChangePersistence(1, 64, 3, 3, 3);
+        ChangePersistence threeWithSlowDecay = new ChangePersistence(1, 64, 3, 3, 1);
+
+        // Act
+        long[] twoInARowResults = new long[frames.length];
+        long[] threeInARowResults = new long[frames.length];
+        long[] threeWithSlowDecayResults = new long[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            twoInARowResults[i] = twoInARow.update(0, frames[i]);
+            threeInARowResults[i] = threeInARow.update(0, frames[i]);
+            threeWithSlowDecayResults[i] = threeWithSlowDecay.update(0, frames[i]);
+        }
+
+        // Assert
+        // The default is the change detector's rule: changed in this and the previous frame.
+        Assert.assertArrayEquals(new long[]{0b00, 0b11, 0b01, 0b01, 0b11}, twoInARowResults);
+        Assert.assertArrayEquals(new long[]{0b00, 0b00, 0b01, 0b01, 0b01}, threeInARowResults);
+        // With slow decay the pixel that dropped out gets through as well.
+        Assert.assertArrayEquals(new long[]{0b00, 0b00, 0b01, 0b01, 0b11}, threeWithSlowDecayResults);
+
+        threeWithSlowDecay.reset();
+        assertEquals(0, threeWithSlowDecay.update(0, 0b11));
+    }
+
+    @Test
+    public void staticFrameCounter_onlySettlesOnFreshMasks() {
+        // Arrange
+        StaticFrameCounter counter = new StaticFrameCounter(2);
+        long sequenceNumber = 0;
+
+        // Act & Assert
+        // Session start: the board is still, but there is no segmentation mask yet, so the whole board is masked.
+        Assert.assertFalse(counter.countFrame(false, sequenceNumber));
+        counter.recordCommit(sequenceNumber++, false);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertFalse(counter.countFrame(true, sequenceNumber));
+            counter.recordCommit(sequenceNumber++, false);
+        }
+        // Skipped once two frames were committed with fresh masks.
+        for (int i = 0; i < 2; i++) {
+            Assert.assertFalse(counter.countFrame(true, sequenceNumber));
+            counter.recordCommit(sequenceNumber++, true);
+        }
+        Assert.assertTrue(counter.countFrame(true, sequenceNumber));
+
+        // The presenter walks away. The masks still cover where they stood until segmentation catches up.
+        Assert.assertFalse(counter.countFrame(false, sequenceNumber));
+        counter.recordCommit(sequenceNumber++, false);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertFalse(counter.countFrame(true, sequenceNumber));
+            counter.recordCommit(sequenceNumber++, false);
+        }
+        for (int i = 0; i < 2; i++) {
+            Assert.assertFalse(counter.countFrame(true, sequenceNumber));
+            counter.recordCommit(sequenceNumber++, true);
+        }
+        Assert.assertTrue(counter.countFrame(true, sequenceNumber));
+
+        // A frame from before the last change committed late does not count.
+        long moving = sequenceNumber;
+        Assert.assertFalse(counter.countFrame(false, moving));
+        Assert.assertFalse(counter.countFrame(false, moving + 1));
+        counter.recordCommit(moving, true);
+        counter.recordCommit(moving + 1, true);
+        Assert.assertFalse(counter.countFrame(true, moving + 2));
+        Assert.assertFalse(counter.countFrame(true, moving + 3));
+        counter.recordCommit(moving + 2, true);
+        counter.recordCommit(moving + 3, true);
+        Assert.assertTrue(counter.countFrame(true, moving + 4));
+    }
+
+    @Test
+    public void changeRegionExtractor_mergesChangedTiles() {
+        // Arrange
+        // 3x3 tiles, the last row and column of tiles cut off by the board edge.
+        BinaryImage changes = new BinaryImage(150, 150);
+        changes.set(10, 10, true);
+        changes.set(10, 100, true);
+        changes.set(70, 140, true);
+        changes.set(140, 140, true);
+        List<Rect> regions = new ArrayList<>();
+
+        // Act
+        new ChangeRegionExtractor().extract(changes, regions);
+
+        // Assert
+        // The two tiles next to each other in the top row make one region, the two tiles above each other another one.
+        assertEquals(Arrays.asList(new Rect(0, 0, 128, 64), new Rect(128, 64, 22, 86)), regions);
+    }
+
+    // Checks a rectangular dilation or erosion pixel by pixel, ignoring pixels outside the image.
+    private void assertMorphology(BinaryImage src, BinaryImage dst, int kernelWidth, int kernelHeight, boolean isDilation) {
+        for (int row = 0; row < src.rows(); row++) {
+            for (int col = 0; col < src.cols(); col++) {
+                boolean expected = !isDilation;
+                for (int j = 0; j < kernelHeight; j++) {
+                    for (int i = 0; i < kernelWidth; i++) {
+                        int y = row + j - kernelHeight / 2;
+                        int x = col + i - kernelWidth / 2;
+                        if (y >= 0 && y < src.rows() && x >= 0 && x < src.cols() && src.get(y, x) == isDilation) {
+                            expected = isDilation;
+                        }
+                    }
+                }
+                assertEquals(expected, dst.get(row, col));
+            }
+        }
+        for (int i = 0; i < dst.getWords().length; i++) {
+            assertEquals(0, dst.getWords()[i] & ~dst.getColumnMask(i % dst.getWordsPerRow()));
+        }
+    }
+
+    // Splits an NV21 buffer into YUV_420_888 style planes with the given layout and packs them again.
+    private byte[] packPlanes(Nv21Packer packer, byte[] nv21, int width, int height, int rowStride, int pixelStride, boolean isInterleaved) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int ySize = width * height;
+
+        ByteBuffer yBuffer = ByteBuffer.allocate(rowStride * height);
+        for (int row = 0; row < height; row++) {
+            yBuffer.position(row * rowStride);
+            yBuffer.put(nv21, row * width, width);
+        }
+
+        ByteBuffer uBuffer;
+        ByteBuffer vBuffer;
+        if (isInterleaved) {
+            // V plane starts at the first V sample and U plane one byte later in the same memory.
+            ByteBuffer vuBuffer = ByteBuffer.allocate(rowStride * chromaHeight + 1);
+            for (int row = 0; row < chromaHeight; row++) {
+                vuBuffer.position(row * rowStride);
+                vuBuffer.put(nv21, ySize + row * width, width);
+            }
+            vuBuffer.position(0);
+            vBuffer = vuBuffer.slice();
+            vuBuffer.position(1);
+            uBuffer = vuBuffer.slice();
+        } else {
+            uBuffer = ByteBuffer.allocate(rowStride * chromaHeight);
+            vBuffer = ByteBuffer.allocate(rowStride * chromaHeight);
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int col = 0; col < chromaWidth; col++) {
+                    int vuPos = ySize + row * width + col * 2;
+                    vBuffer.put(row * rowStride + col * pixelStride, nv21[vuPos]);
+                    uBuffer.put(row * rowStride + col * pixelStride, nv21[vuPos + 1]);
+                }
+            }
+        }
+
+        byte[] packed = packer.pack(yBuffer, rowStride, uBuffer, vBuffer, rowStride, pixelStride, width, height);
+        return packed.clone();
+    }
+
 //    // Loads bitmap from asset directory.
 //    private Bitmap loadBitmap(String fileName) {
 //        Context appContext = InstrumentationRegistry.getInstrumentation().getContext();